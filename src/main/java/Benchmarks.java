@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Micro benchmarks for the hot paths of the search engine. Run with one of the
+ * benchmark flags, for example {@code -cleaner -size 2048 -rounds 50} to
+ * compare the regular expression HTML cleaner with the single-pass tokenizer,
+ * {@code -crawl -pages 500 -threads 1,4,8 -max 100,500} to crawl a generated
+ * local site, or {@code -queries queries.txt} to time query parsing.
+ *
+ * @author dionfeng
+ *
+ */
+public class Benchmarks {
+	/**
+	 * @cleanerFlag flag that runs the html cleaner benchmark
+	 */
+	public final static String cleanerFlag = "-cleaner";
+
+	/**
+	 * @sizeFlag flag with the size of the generated page in kilobytes
+	 */
+	public final static String sizeFlag = "-size";
+
+	/**
+	 * @roundsFlag flag with the number of measured rounds
+	 */
+	public final static String roundsFlag = "-rounds";
+
+	/**
+	 * @htmlFlag flag with an html file to use instead of a generated page
+	 */
+	public final static String htmlFlag = "-html";
+
+	/**
+	 * @crawlFlag flag that runs the crawl benchmark against a local site
+	 */
+	public final static String crawlFlag = "-crawl";
+
+	/**
+	 * @pagesFlag flag with the number of pages in the local site
+	 */
+	public final static String pagesFlag = "-pages";
+
+	/**
+	 * @fanoutFlag flag with the number of random links on each local page
+	 */
+	public final static String fanoutFlag = "-fanout";
+
+	/**
+	 * @latencyFlag flag with the delay in milliseconds of each local response
+	 */
+	public final static String latencyFlag = "-latency";
+
+	/**
+	 * @errorsFlag flag with the percentage of local responses that fail
+	 */
+	public final static String errorsFlag = "-errors";
+
+	/**
+	 * @threadsFlag flag with a comma separated list of crawl thread counts
+	 */
+	public final static String threadsFlag = "-threads";
+
+	/**
+	 * @maxFlag flag with a comma separated list of crawl page limits
+	 */
+	public final static String maxFlag = "-max";
+
+	/**
+	 * @queriesFlag flag that runs the query parsing benchmark, with an optional
+	 *              file of query lines to use instead of generated queries
+	 */
+	public final static String queriesFlag = "-queries";
+
+	/**
+	 * Runs the benchmarks selected by the command-line flags.
+	 *
+	 * @param args flag/value pairs selecting the benchmarks to run
+	 * @throws IOException if unable to read benchmark input
+	 */
+	public static void main(String[] args) throws IOException {
+		ArgumentProcessor processor = new ArgumentProcessor(args);
+
+		if (processor.hasFlag(cleanerFlag)) {
+			String html = processor.hasValue(htmlFlag)
+					? Files.readString(processor.getPath(htmlFlag), StandardCharsets.UTF_8)
+					: HtmlCleaning.generatePage(processor.getValue(sizeFlag, 1024) * 1024, new Random(42));
+			HtmlCleaning.run(html, processor.getValue(roundsFlag, 20));
+		}
+
+		if (processor.hasFlag(queriesFlag)) {
+			List<String> queries = processor.hasValue(queriesFlag)
+					? Files.readAllLines(processor.getPath(queriesFlag), StandardCharsets.UTF_8)
+					: QueryParsing.generateQueries(1000, new Random(42));
+			QueryParsing.run(queries, processor.getValue(roundsFlag, 20));
+		}
+
+		if (processor.hasFlag(crawlFlag)) {
+			LocalSiteFixture site = new LocalSiteFixture(processor.getValue(pagesFlag, 500),
+					processor.getValue(sizeFlag, 8) * 1024, processor.getValue(fanoutFlag, 5));
+			site.setLatency(processor.getValue(latencyFlag, 0));
+			site.setErrorRate(processor.getValue(errorsFlag, 0) / 100.0);
+
+			try {
+				site.start();
+				CrawlThroughput.run(site, parseList(processor.getValue(threadsFlag), List.of(1, 4, 8)),
+						parseList(processor.getValue(maxFlag), List.of(site.getPages())));
+			} catch (Exception e) {
+				System.err.println("Unable to run crawl benchmark: " + e.getMessage());
+			} finally {
+				try {
+					site.stop();
+				} catch (Exception e) {
+					System.err.println("Unable to stop local site: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of positive numbers.
+	 *
+	 * @param value        the list, or {@code null}
+	 * @param defaultValue the numbers to use if the list is missing or invalid
+	 * @return the numbers in the list
+	 */
+	public static List<Integer> parseList(String value, List<Integer> defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+
+		List<Integer> numbers = new ArrayList<>();
+		for (String part : value.split(",")) {
+			try {
+				int number = Integer.parseInt(part.strip());
+				if (number > 0) {
+					numbers.add(number);
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Ignoring invalid number: " + part);
+			}
+		}
+		return numbers.isEmpty() ? defaultValue : numbers;
+	}
+
+	/**
+	 * Times a task over several rounds after the same number of warm-up rounds.
+	 *
+	 * @param rounds number of measured rounds
+	 * @param task   the work to time
+	 * @return the average number of nanoseconds per round
+	 */
+	public static double time(int rounds, Runnable task) {
+		for (int i = 0; i < rounds; i++) {
+			task.run();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			task.run();
+		}
+		return (double) (System.nanoTime() - start) / rounds;
+	}
+
+	/**
+	 * Compares {@link HtmlUtils.HtmlCleaner#stripHtml(String)} with
+	 * {@link HtmlUtils.HtmlTokenizer#stripHtml(String)}.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class HtmlCleaning {
+		/** Words used to fill generated pages. */
+		private static final String[] WORDS = { "search", "engine", "crawler", "index", "the", "and", "caf&eacute;",
+				"5&nbsp;&lt;&nbsp;7", "AT&amp;T", "&#8212;", "&unknown;" };
+
+		/**
+		 * Generates a page with the mix of markup found on real pages: comments,
+		 * scripts, styles, inline tags, links, and entities.
+		 *
+		 * @param size   approximate size of the page in characters
+		 * @param random source of randomness for the page content
+		 * @return the generated html
+		 */
+		public static String generatePage(int size, Random random) {
+			StringBuilder html = new StringBuilder(size + 1024);
+			html.append("<html><head><title>Benchmark</title><style>p { margin: 0; }</style></head><body>\n");
+
+			while (html.length() < size) {
+				switch (random.nextInt(8)) {
+				case 0 -> html.append("<!-- generated <b>comment</b> -->\n");
+				case 1 -> html.append("<script type=\"text/javascript\">if (a < b) { c = \"</p>\"; }</script>\n");
+				case 2 -> html.append("<style>\nbody { font-size: 10pt; }\n</style>\n");
+				case 3 -> html.append("<a href=\"/page").append(random.nextInt(1000)).append(".html\">link</a>\n");
+				default -> {
+					html.append("<p class=\"text\">");
+					for (int i = 0; i < 40; i++) {
+						html.append(WORDS[random.nextInt(WORDS.length)]).append(i % 7 == 0 ? "<br>" : " ");
+					}
+					html.append("</p>\n");
+				}
+				}
+			}
+
+			return html.append("</body></html>").toString();
+		}
+
+		/**
+		 * Runs both cleaners over the page and prints their average times.
+		 *
+		 * @param html   the page to clean
+		 * @param rounds number of measured rounds
+		 */
+		public static void run(String html, int rounds) {
+			double regex = time(rounds, () -> HtmlUtils.HtmlCleaner.stripHtml(html));
+			double single = time(rounds, () -> HtmlUtils.HtmlTokenizer.stripHtml(html));
+
+			System.out.printf("Page size:         %d chars%n", html.length());
+			System.out.printf("Regex pipeline:    %.3f ms%n", regex / 1_000_000);
+			System.out.printf("Single-pass:       %.3f ms%n", single / 1_000_000);
+			System.out.printf("Speedup:           %.1fx%n", regex / single);
+		}
+	}
+
+	/**
+	 * Compares the latency of parsing query lines with a new stemmer for each
+	 * line, the stemmer of the calling thread, and the shared stem cache.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class QueryParsing {
+		/** Words used to build generated queries. */
+		private static final String[] WORDS = { "searching", "engines", "crawled", "indexes", "queries", "the",
+				"and", "running", "stemmed", "Caf\u00E9", "AT&T", "quickly", "partial", "exactly", "locations" };
+
+		/**
+		 * Generates query lines of one to four words.
+		 *
+		 * @param count  number of query lines
+		 * @param random source of randomness for the queries
+		 * @return the generated query lines
+		 */
+		public static List<String> generateQueries(int count, Random random) {
+			List<String> queries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				StringBuilder query = new StringBuilder();
+				int words = 1 + random.nextInt(4);
+				for (int j = 0; j < words; j++) {
+					query.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+				}
+				queries.add(query.toString());
+			}
+			return queries;
+		}
+
+		/**
+		 * Parses every query line with each approach and prints the average time per
+		 * line.
+		 *
+		 * @param queries the query lines to parse
+		 * @param rounds  number of measured rounds
+		 */
+		public static void run(List<String> queries, int rounds) {
+			if (queries.isEmpty()) {
+				System.err.println("No queries to parse");
+				return;
+			}
+
+			double fresh = time(rounds, () -> {
+				for (String query : queries) {
+					WordStemmer.uniqueStems(query, new SnowballStemmer(WordStemmer.ENGLISH));
+				}
+			});
+			double local = time(rounds, () -> {
+				for (String query : queries) {
+					WordStemmer.uniqueStems(query, WordStemmer.getStemmer());
+				}
+			});
+			double cached = time(rounds, () -> {
+				for (String query : queries) {
+					WordStemmer.uniqueStems(query);
+				}
+			});
+
+			System.out.printf("Query lines:       %d%n", queries.size());
+			System.out.printf("New stemmer:       %.3f us/query%n", fresh / queries.size() / 1000);
+			System.out.printf("Thread stemmer:    %.3f us/query%n", local / queries.size() / 1000);
+			System.out.printf("Stem cache:        %.3f us/query%n", cached / queries.size() / 1000);
+			System.out.printf("Speedup:           %.1fx%n", fresh / cached);
+		}
+	}
+
+	/**
+	 * Crawls a {@link LocalSiteFixture} with a fresh {@link MultiThreadCrawler} for
+	 * every combination of thread count and page limit.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class CrawlThroughput {
+		/**
+		 * Runs the crawls and prints one line of results for each.
+		 *
+		 * @param site    the running local site
+		 * @param threads thread counts to crawl with
+		 * @param limits  page limits to crawl with
+		 * @throws IOException if unable to crawl
+		 */
+		public static void run(LocalSiteFixture site, List<Integer> threads, List<Integer> limits)
+				throws IOException {
+			// warm up the fetcher, tokenizer and stemmer before measuring
+			crawl(site, threads.get(0), Math.min(50, site.getPages()));
+
+			System.out.printf("%8s %8s %8s %10s %10s %12s %10s %10s%n", "threads", "max", "pages", "seconds",
+					"pages/s", "KB/s", "words", "locations");
+			for (int max : limits) {
+				for (int count : threads) {
+					crawl(site, count, max);
+				}
+			}
+		}
+
+		/**
+		 * Crawls the site once and prints the results.
+		 *
+		 * @param site    the running local site
+		 * @param threads number of crawl threads
+		 * @param max     most pages to crawl
+		 * @throws IOException if unable to crawl
+		 */
+		private static void crawl(LocalSiteFixture site, int threads, int max) throws IOException {
+			WorkQueue queue = new WorkQueue(threads);
+			ThreadSafeInvertedIndex index = new ThreadSafeInvertedIndex();
+			MultiThreadCrawler crawler = new MultiThreadCrawler(index, queue, max);
+
+			try {
+				long start = System.nanoTime();
+				crawler.crawl(site.getSeed().toString());
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				HtmlUtils.FetchStatistics statistics = crawler.getStatistics();
+				System.out.printf("%8d %8d %8d %10.3f %10.1f %12.1f %10d %10d%n", threads, max, statistics.getPages(),
+						seconds, statistics.getPages() / seconds, statistics.getCompressedBytes() / 1024.0 / seconds,
+						index.getWordSize(), index.getCountLocations().size());
+			} finally {
+				queue.shutdown();
+			}
+		}
+	}
+}
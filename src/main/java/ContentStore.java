@@ -0,0 +1,362 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only store of the cleaned text of crawled pages, so the index can be
+ * rebuilt with a different tokenizer or stemmer without fetching anything
+ * again. The directory holds two files:
+ *
+ * <ul>
+ * <li>{@code content.dat}, the deflated text of every page stored, one record
+ * after another</li>
+ * <li>{@code content.idx}, one entry per record with the url, offset and
+ * length of the record, or a removal marker</li>
+ * </ul>
+ *
+ * <p>
+ * Storing a url again appends a new record; the latest entry of a url wins.
+ * Both files are only ever appended to, and an entry is written after its
+ * record, so a crash at most loses the last page stored.
+ *
+ * @author dionfeng
+ *
+ */
+public class ContentStore implements Closeable {
+	/** Length of an entry that marks its url as removed. */
+	private static final int REMOVED = -1;
+
+	/** Deflated page records. */
+	private final FileChannel data;
+
+	/** Entries of the records. */
+	private final FileChannel entries;
+
+	/** Latest record of every url, in the order urls were first stored. */
+	private final Map<String, Entry> index;
+
+	/**
+	 * Opens the store in the directory, creating it if needed.
+	 *
+	 * @param directory the directory of the store
+	 * @throws IOException if unable to open or read the store
+	 */
+	public ContentStore(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		this.data = FileChannel.open(directory.resolve("content.dat"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.entries = FileChannel.open(directory.resolve("content.idx"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.index = new LinkedHashMap<>();
+		load();
+	}
+
+	/**
+	 * Stores the text of a page, replacing any text stored before for the url.
+	 *
+	 * The text is compressed before taking the lock, so several threads can
+	 * compress at once and only the appends are serialized.
+	 *
+	 * @param url  the normalized url of the page
+	 * @param text the cleaned text of the page
+	 * @throws IOException if unable to write to the store
+	 */
+	public void put(String url, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		byte[] record = deflate(bytes);
+
+		synchronized (this) {
+			long offset = data.size();
+			write(data, ByteBuffer.wrap(record), offset);
+			appendEntry(url, new Entry(offset, record.length, bytes.length));
+		}
+	}
+
+	/**
+	 * Removes the text of a page from the store.
+	 *
+	 * @param url the normalized url of the page
+	 * @throws IOException if unable to write to the store
+	 */
+	public synchronized void remove(String url) throws IOException {
+		if (index.containsKey(url)) {
+			appendEntry(url, new Entry(0, REMOVED, 0));
+		}
+	}
+
+	/**
+	 * Returns the stored text of a page.
+	 *
+	 * @param url the normalized url of the page
+	 * @return the cleaned text, or {@code null} if the page is not stored
+	 * @throws IOException if unable to read the store
+	 */
+	public String get(String url) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = index.get(url);
+		}
+		return entry == null ? null : read(entry);
+	}
+
+	/**
+	 * Returns the urls of every page stored, in the order they were first stored.
+	 *
+	 * @return a copy of the urls
+	 */
+	public synchronized List<String> getUrls() {
+		return new ArrayList<>(index.keySet());
+	}
+
+	/**
+	 * Returns the number of pages stored.
+	 *
+	 * @return number of pages
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Removes every page and truncates the files.
+	 *
+	 * @throws IOException if unable to truncate the files
+	 */
+	public synchronized void clear() throws IOException {
+		data.truncate(0);
+		entries.truncate(0);
+		index.clear();
+	}
+
+	/**
+	 * Removes the pages of the given urls.
+	 *
+	 * @param urls the normalized urls of the pages
+	 * @throws IOException if unable to write to the store
+	 */
+	public synchronized void removeAll(Collection<String> urls) throws IOException {
+		for (String url : urls) {
+			remove(url);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			data.close();
+		} finally {
+			entries.close();
+		}
+	}
+
+	/**
+	 * Reads the entries file, ignoring a partially written last entry and entries
+	 * pointing past the end of the records.
+	 *
+	 * @throws IOException if unable to read the entries
+	 */
+	private void load() throws IOException {
+		long size = data.size();
+		long valid = 0;
+
+		entries.position(0);
+		InputStream stream = Channels.newInputStream(entries);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		try {
+			while (true) {
+				String url = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				int textLength = in.readInt();
+
+				if (length == REMOVED) {
+					index.remove(url);
+				} else if (offset + length <= size) {
+					index.put(url, new Entry(offset, length, textLength));
+				}
+				valid += 2 + utfLength(url) + 16;
+			}
+		} catch (EOFException e) {
+			// end of the entries, or a partial entry from a crash
+		}
+
+		// drop a partial entry so new entries start at a clean boundary
+		entries.truncate(valid);
+	}
+
+	/**
+	 * Returns the number of bytes {@link DataOutputStream#writeUTF(String)} writes
+	 * for the string after its length. This is modified UTF-8, which takes two
+	 * bytes for a NUL and six for a character outside the Basic Multilingual
+	 * Plane, so it differs from the standard UTF-8 length.
+	 *
+	 * @param string the string
+	 * @return length of the string in modified UTF-8
+	 */
+	private static int utfLength(String string) {
+		int length = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Appends an entry and applies it to the in-memory index. Called while holding
+	 * the lock of this store.
+	 *
+	 * @param url   the normalized url
+	 * @param entry the entry to append
+	 * @throws IOException if unable to write the entry
+	 */
+	private void appendEntry(String url, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(url.length() + 24);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(url);
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+			out.writeInt(entry.textLength);
+		}
+		write(entries, ByteBuffer.wrap(bytes.toByteArray()), entries.size());
+
+		if (entry.length == REMOVED) {
+			index.remove(url);
+		} else {
+			index.remove(url);
+			index.put(url, entry);
+		}
+	}
+
+	/**
+	 * Reads and inflates a record. Positional reads let several threads read at
+	 * once.
+	 *
+	 * @param entry the entry of the record
+	 * @return the text of the record
+	 * @throws IOException if unable to read or inflate the record
+	 */
+	private String read(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		long position = entry.offset;
+		while (buffer.hasRemaining()) {
+			int read = data.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Truncated content record");
+			}
+			position += read;
+		}
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(buffer.array());
+			byte[] text = new byte[entry.textLength];
+			int length = 0;
+			while (length < text.length && !inflater.finished()) {
+				length += inflater.inflate(text, length, text.length - length);
+				if (length < text.length && inflater.needsInput()) {
+					throw new IOException("Corrupt content record");
+				}
+			}
+			return new String(text, 0, length, StandardCharsets.UTF_8);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt content record", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Deflates the bytes.
+	 *
+	 * @param bytes the bytes to compress
+	 * @return the compressed bytes
+	 */
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Writes the whole buffer at the position.
+	 *
+	 * @param channel  the channel to write to
+	 * @param buffer   the bytes to write
+	 * @param position where to write them
+	 * @throws IOException if unable to write
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return size() + " pages";
+	}
+
+	/**
+	 * Location of a record. Immutable.
+	 */
+	private static class Entry {
+		/** Offset of the record in the records file. */
+		private final long offset;
+
+		/** Length of the deflated record, or {@link #REMOVED}. */
+		private final int length;
+
+		/** Length of the UTF-8 text. */
+		private final int textLength;
+
+		/**
+		 * Initializes an entry.
+		 *
+		 * @param offset     offset of the record
+		 * @param length     length of the deflated record
+		 * @param textLength length of the UTF-8 text
+		 */
+		public Entry(long offset, int length, int textLength) {
+			this.offset = offset;
+			this.length = length;
+			this.textLength = textLength;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persists the state of a crawl so it can resume after the process dies. The
+ * state directory holds:
+ *
+ * <ul>
+ * <li>{@code seed.txt}, the seed url of the crawl</li>
+ * <li>{@code frontier.log}, every url queued for crawling, appended in order</li>
+ * <li>{@code visited.log}, every url whose page has been processed, with a
+ * {@value #CHECKPOINT} line each time the index is checkpointed</li>
+ * <li>{@code index.snapshot}, the index as of the last checkpoint</li>
+ * <li>{@code pages.meta}, the validators, hash and links of every page fetched
+ * as of the last checkpoint</li>
+ * </ul>
+ *
+ * <p>
+ * On resume the snapshot is loaded, urls visited before the last checkpoint
+ * line are skipped, and every other queued url is crawled again. Pages visited
+ * after the last checkpoint are refetched because their postings are not in the
+ * snapshot; adding the same page twice leaves the index unchanged, so a crash
+ * at any point is safe.
+ *
+ * <p>
+ * A recrawl starts a new pass from the seed on top of the last snapshot, so
+ * the crawler can ask for each page only if it changed since it was indexed.
+ *
+ * @author dionfeng
+ *
+ */
+public class CrawlCheckpoint {
+	/** Line written to the visited log after each index checkpoint. */
+	public static final String CHECKPOINT = "#checkpoint";
+
+	/** The default number of pages visited between checkpoints. */
+	public static final int DEFAULT_INTERVAL = 100;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** File with the seed url. */
+	private final Path seedFile;
+
+	/** Append-only log of queued urls. */
+	private final Path frontierFile;
+
+	/** Append-only log of visited urls and checkpoints. */
+	private final Path visitedFile;
+
+	/** Index as of the last checkpoint. */
+	private final Path snapshotFile;
+
+	/** Page metadata as of the last checkpoint. */
+	private final Path metadataFile;
+
+	/** Number of pages visited between checkpoints. */
+	private final int interval;
+
+	/** Whether to start a new pass over the last snapshot instead of resuming. */
+	private final boolean recrawl;
+
+	/** What is known about every page fetched. */
+	private final PageMetadataStore pages;
+
+	/**
+	 * Held for reading while a page is added to the index and logged as visited,
+	 * and for writing while checkpointing, so every page logged before a
+	 * checkpoint line is in the snapshot.
+	 */
+	private final ReadWriteLock lock;
+
+	/** Number of pages visited since the last checkpoint. */
+	private final AtomicInteger sinceCheckpoint;
+
+	/** Urls queued in a previous run but not visited before its last checkpoint. */
+	private final List<String> pending;
+
+	/** Writer appending to the frontier log. */
+	private BufferedWriter frontier;
+
+	/** Writer appending to the visited log. */
+	private BufferedWriter visited;
+
+	/**
+	 * Initializes the checkpoint files in the given directory.
+	 *
+	 * @param directory directory to keep the crawl state in
+	 * @param interval  number of pages visited between index checkpoints
+	 */
+	public CrawlCheckpoint(Path directory, int interval) {
+		this(directory, interval, false);
+	}
+
+	/**
+	 * Initializes the checkpoint files in the given directory.
+	 *
+	 * @param directory directory to keep the crawl state in
+	 * @param interval  number of pages visited between index checkpoints
+	 * @param recrawl   whether to recrawl from the seed on top of the last
+	 *                  snapshot instead of resuming
+	 */
+	public CrawlCheckpoint(Path directory, int interval, boolean recrawl) {
+		this.seedFile = directory.resolve("seed.txt");
+		this.frontierFile = directory.resolve("frontier.log");
+		this.visitedFile = directory.resolve("visited.log");
+		this.snapshotFile = directory.resolve("index.snapshot");
+		this.metadataFile = directory.resolve("pages.meta");
+		this.interval = Math.max(1, interval);
+		this.recrawl = recrawl;
+		this.pages = new PageMetadataStore();
+		this.lock = new ReadWriteLock();
+		this.sinceCheckpoint = new AtomicInteger();
+		this.pending = new ArrayList<>();
+	}
+
+	/**
+	 * Opens the crawl state. If the directory holds the state of a crawl from the
+	 * same seed, the last index snapshot is added to the index, every url queued
+	 * before is added to the crawled set, and the urls still to be crawled become
+	 * available from {@link #getPending()}. When recrawling, the last snapshot and
+	 * page metadata are loaded but the crawl starts over from the seed. Otherwise
+	 * any old state is discarded.
+	 *
+	 * @param seed    the normalized seed url
+	 * @param index   the index to restore the snapshot into
+	 * @param crawled the set of queued urls to restore
+	 * @return {@code true} if a previous crawl was resumed, {@code false} if the
+	 *         crawl should start from the seed
+	 * @throws IOException if unable to read or create the state files
+	 */
+	public boolean resume(String seed, InvertedIndex index, UrlFingerprintSet crawled) throws IOException {
+		Files.createDirectories(seedFile.getParent());
+		boolean sameSeed = Files.exists(seedFile)
+				&& Files.readString(seedFile, StandardCharsets.UTF_8).strip().equals(seed);
+		boolean resumed = sameSeed && !recrawl;
+
+		pending.clear();
+		if (sameSeed || recrawl) {
+			if (Files.exists(snapshotFile)) {
+				index.readSnapshot(snapshotFile);
+			}
+			if (Files.exists(metadataFile)) {
+				pages.read(metadataFile);
+			}
+		}
+
+		if (resumed) {
+			Set<String> done = readVisited();
+			Set<String> queued = new LinkedHashSet<>(readLines(frontierFile));
+			for (String url : queued) {
+				crawled.add(url);
+				if (!done.contains(url)) {
+					pending.add(url);
+				}
+			}
+
+			log.info("Resuming crawl of {}: {} urls queued, {} still to crawl", seed, queued.size(), pending.size());
+		} else {
+			Files.writeString(seedFile, seed + System.lineSeparator(), StandardCharsets.UTF_8);
+			Files.deleteIfExists(frontierFile);
+			Files.deleteIfExists(visitedFile);
+			if (recrawl) {
+				log.info("Recrawling {} over {} known pages", seed, pages.size());
+			} else {
+				Files.deleteIfExists(snapshotFile);
+				Files.deleteIfExists(metadataFile);
+			}
+		}
+
+		frontier = Files.newBufferedWriter(frontierFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		visited = Files.newBufferedWriter(visitedFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		sinceCheckpoint.set(0);
+		return resumed;
+	}
+
+	/**
+	 * Returns what is known about every page fetched, restored from the last
+	 * checkpoint and saved with every checkpoint.
+	 *
+	 * @return the page metadata
+	 */
+	public PageMetadataStore getPages() {
+		return pages;
+	}
+
+	/**
+	 * Returns the urls left to crawl by the resumed crawl, in the order they were
+	 * queued.
+	 *
+	 * @return urls to crawl
+	 */
+	public List<String> getPending() {
+		return pending;
+	}
+
+	/**
+	 * Records that a url was queued for crawling.
+	 *
+	 * @param url the normalized url
+	 * @throws IOException if unable to write to the frontier log
+	 */
+	public void queued(String url) throws IOException {
+		synchronized (frontier) {
+			frontier.write(url);
+			frontier.newLine();
+		}
+	}
+
+	/**
+	 * Applies the index update for a page and records the page as visited,
+	 * checkpointing the index once enough pages have been visited.
+	 *
+	 * @param url    the normalized url of the page
+	 * @param update adds the page to the index, or {@code null} if nothing is
+	 *               added
+	 * @param index  the index to checkpoint
+	 * @throws IOException if unable to write the visited log or checkpoint
+	 */
+	public void visited(String url, Runnable update, InvertedIndex index) throws IOException {
+		lock.readLock().lock();
+		try {
+			if (update != null) {
+				update.run();
+			}
+			synchronized (visited) {
+				visited.write(url);
+				visited.newLine();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (sinceCheckpoint.incrementAndGet() % interval == 0) {
+			checkpoint(index);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the index and marks every page visited so far as
+	 * included in it.
+	 *
+	 * @param index the index to snapshot
+	 * @throws IOException if unable to write the snapshot or logs
+	 */
+	public void checkpoint(InvertedIndex index) throws IOException {
+		lock.writeLock().lock();
+		try {
+			synchronized (frontier) {
+				frontier.flush();
+			}
+			index.writeSnapshot(snapshotFile);
+			pages.write(metadataFile);
+			synchronized (visited) {
+				visited.write(CHECKPOINT);
+				visited.newLine();
+				visited.flush();
+			}
+			sinceCheckpoint.set(0);
+			log.debug("Checkpointed crawl index to {}", snapshotFile);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes a final checkpoint and closes the logs.
+	 *
+	 * @param index the index to snapshot
+	 * @throws IOException if unable to write the snapshot or logs
+	 */
+	public void finish(InvertedIndex index) throws IOException {
+		checkpoint(index);
+		frontier.close();
+		visited.close();
+	}
+
+	/**
+	 * Reads the urls of the visited log up to its last checkpoint line.
+	 *
+	 * @return urls whose pages are in the snapshot
+	 * @throws IOException if unable to read the log
+	 */
+	private Set<String> readVisited() throws IOException {
+		Set<String> done = new HashSet<>();
+		List<String> sinceLast = new ArrayList<>();
+
+		for (String line : readLines(visitedFile)) {
+			if (line.equals(CHECKPOINT)) {
+				done.addAll(sinceLast);
+				sinceLast.clear();
+			} else {
+				sinceLast.add(line);
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Reads the non-blank lines of a log, ignoring a partially written last line.
+	 *
+	 * @param path the log to read
+	 * @return the lines of the log, or an empty list if it does not exist
+	 * @throws IOException if unable to read the log
+	 */
+	private static List<String> readLines(Path path) throws IOException {
+		List<String> lines = new ArrayList<>();
+		if (!Files.exists(path)) {
+			return lines;
+		}
+
+		String content = Files.readString(path, StandardCharsets.UTF_8);
+		int end = content.lastIndexOf('\n');
+		try (BufferedReader reader = new BufferedReader(new java.io.StringReader(content.substring(0, end + 1)))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isBlank()) {
+					lines.add(line.strip());
+				}
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,386 @@
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watches a directory tree of text files and keeps a running index up to date
+ * while it is being searched. Changes are debounced: a file is only re-indexed
+ * once it has had no events for the debounce delay, so an editor saving a file
+ * in several writes causes a single update. A file that keeps changing is still
+ * re-indexed at least every {@link #MAX_DELAYS} debounce delays.
+ *
+ * <p>
+ * Each file is indexed on its own and replaces its old postings in a single
+ * update, so searches never see a file half indexed. Directories created later
+ * are watched as well, and deleting a directory removes every file in it.
+ *
+ * @author dionfeng
+ *
+ */
+public class DirectoryWatcher implements Closeable {
+	/** The default debounce delay in milliseconds. */
+	public static final int DEFAULT_DEBOUNCE = 500;
+
+	/** Most debounce delays a file that keeps changing waits. */
+	public static final int MAX_DELAYS = 10;
+
+	/** How often a paused watcher collects events, in milliseconds. */
+	private static final int PAUSED_POLL = 100;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The text file or directory watched. */
+	private final Path root;
+
+	/** Index kept up to date. */
+	private final ThreadSafeInvertedIndex index;
+
+	/** Debounce delay in nanoseconds. */
+	private final long debounce;
+
+	/** Watch service of the file system of the root. */
+	private final WatchService service;
+
+	/** Watched directories by key. */
+	private final Map<WatchKey, Path> directories;
+
+	/** Changed paths waiting for the debounce delay, oldest first. */
+	private final Map<Path, Pending> pending;
+
+	/** Thread applying the changes. */
+	private final Thread thread;
+
+	/** Whether due changes are applied, only once the index is built. */
+	private volatile boolean applying;
+
+	/** Number of files re-indexed. */
+	private int updates;
+
+	/** Number of files or directories removed. */
+	private int removals;
+
+	/**
+	 * Initializes a watcher. Call {@link #start()} to start watching.
+	 *
+	 * @param root           the text file or directory to watch
+	 * @param index          index to keep up to date
+	 * @param debounceMillis debounce delay in milliseconds
+	 * @throws IOException if unable to create a watch service
+	 */
+	public DirectoryWatcher(Path root, ThreadSafeInvertedIndex index, int debounceMillis) throws IOException {
+		this.root = root.normalize();
+		this.index = index;
+		this.debounce = TimeUnit.MILLISECONDS.toNanos(Math.max(0, debounceMillis));
+		this.service = root.getFileSystem().newWatchService();
+		this.directories = new HashMap<>();
+		this.pending = new LinkedHashMap<>();
+		this.thread = new Thread(this::run, "directory-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Registers every directory under the root and starts recording changes in a
+	 * background thread. Start watching before building the index, so files that
+	 * change during the build are not missed, and call {@link #resume()} once it
+	 * is built.
+	 *
+	 * @throws IOException if unable to watch the root
+	 */
+	public void start() throws IOException {
+		if (Files.isDirectory(root)) {
+			register(root, false);
+		} else {
+			Path parent = root.toAbsolutePath().getParent();
+			directories.put(parent.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+					root.getParent() == null ? Path.of("") : root.getParent());
+		}
+		thread.start();
+	}
+
+	/**
+	 * Starts applying the changes recorded so far and any later ones. Changes are
+	 * held back until then, so a file changed during the build is never indexed
+	 * again before the build adds its older contents.
+	 */
+	public void resume() {
+		applying = true;
+	}
+
+	/**
+	 * Watches the directory and every directory under it.
+	 *
+	 * @param directory the directory
+	 * @param queue     whether to queue the text files found, for a directory
+	 *                  created after the index was built
+	 * @throws IOException if unable to watch the directory
+	 */
+	private void register(Path directory, boolean queue) throws IOException {
+		directories.put(directory.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), directory);
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream) {
+				if (Files.isDirectory(path)) {
+					register(path.normalize(), queue);
+				} else if (queue && FilesFinder.isTextFile(path)) {
+					changed(path.normalize(), System.nanoTime());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for events and applies the changes once they are due, until closed.
+	 */
+	private void run() {
+		try {
+			while (true) {
+				WatchKey key = waitForEvents();
+				if (key != null) {
+					handle(key);
+				}
+				if (applying) {
+					applyDue();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			log.debug("Stopped watching {}", root);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the next event, or until the oldest pending change is due. While
+	 * paused, waits a short time instead, to notice when to start applying.
+	 *
+	 * @return key with events, or {@code null} if a change is due
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private WatchKey waitForEvents() throws InterruptedException {
+		if (!applying) {
+			return service.poll(PAUSED_POLL, TimeUnit.MILLISECONDS);
+		}
+		if (pending.isEmpty()) {
+			return service.take();
+		}
+
+		long now = System.nanoTime();
+		long due = Long.MAX_VALUE;
+		for (Pending change : pending.values()) {
+			due = Math.min(due, change.due());
+		}
+		return due <= now ? service.poll() : service.poll(due - now, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the events of a key as pending changes.
+	 *
+	 * @param key key with events
+	 */
+	private void handle(WatchKey key) {
+		Path directory = directories.get(key);
+		long now = System.nanoTime();
+		if (directory == null) {
+			key.cancel();
+			return;
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				log.warn("Missed events under {}, rescanning", directory);
+				rescan(directory, now);
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context()).normalize();
+			if (!Files.isDirectory(root) && !path.equals(root)) {
+				continue;
+			}
+
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					register(path, true);
+				} catch (IOException e) {
+					log.warn("Unable to watch directory {}: {}", path, e.getMessage());
+				}
+			} else if (event.kind() == ENTRY_DELETE || FilesFinder.isTextFile(path)) {
+				changed(path, now);
+			}
+		}
+
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	/**
+	 * Queues every text file in the directory again after events were lost.
+	 *
+	 * @param directory the directory
+	 * @param now       the current time in nanoseconds
+	 */
+	private void rescan(Path directory, long now) {
+		try {
+			for (Path path : FilesFinder.traverseDirectory(directory)) {
+				changed(path, now);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to rescan directory {}: {}", directory, e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a change, restarting its debounce delay.
+	 *
+	 * @param path the changed path
+	 * @param now  the current time in nanoseconds
+	 */
+	private void changed(Path path, long now) {
+		Pending change = pending.get(path);
+		if (change == null) {
+			pending.put(path, new Pending(now));
+		} else {
+			change.last = now;
+		}
+	}
+
+	/**
+	 * Applies every pending change that is due. A change that fails is logged and
+	 * dropped, so the watcher keeps running.
+	 */
+	private void applyDue() {
+		long now = System.nanoTime();
+		List<Path> due = new ArrayList<>();
+
+		Iterator<Map.Entry<Path, Pending>> changes = pending.entrySet().iterator();
+		while (changes.hasNext()) {
+			var change = changes.next();
+			if (change.getValue().due() <= now) {
+				due.add(change.getKey());
+				changes.remove();
+			}
+		}
+
+		for (Path path : due) {
+			try {
+				apply(path);
+			} catch (RuntimeException | Error e) {
+				// such as the InternalError of a mapped file truncated while read
+				log.error("Unable to apply change to {}", path, e);
+			}
+		}
+	}
+
+	/**
+	 * Re-indexes a changed text file, or removes a path that no longer exists.
+	 *
+	 * @param path the changed path
+	 */
+	private void apply(Path path) {
+		if (Files.isRegularFile(path)) {
+			InvertedIndex local = new InvertedIndex();
+			try {
+				InvertedIndexBuilder.processFile(path, local);
+			} catch (IOException e) {
+				log.warn("Unable to index {}: {}", path, e.getMessage());
+				return;
+			}
+			index.replaceLocation(path.toString(), local);
+			synchronized (this) {
+				updates++;
+			}
+			log.info("Re-indexed {}", path);
+		} else if (Files.notExists(path)) {
+			index.removeDirectory(path);
+			synchronized (this) {
+				removals++;
+			}
+			log.info("Removed {}", path);
+		}
+	}
+
+	/**
+	 * Returns the number of files re-indexed.
+	 *
+	 * @return number of updates
+	 */
+	public synchronized int getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * Returns the number of files or directories removed.
+	 *
+	 * @return number of removals
+	 */
+	public synchronized int getRemovals() {
+		return removals;
+	}
+
+	/**
+	 * Stops watching. Pending changes are dropped.
+	 *
+	 * @throws IOException if unable to close the watch service
+	 */
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d updates, %d removals", root, getUpdates(), getRemovals());
+	}
+
+	/**
+	 * A change waiting for its debounce delay. Only used by the watcher thread.
+	 */
+	private class Pending {
+		/** When the first event of the change arrived. */
+		private final long first;
+
+		/** When the last event of the change arrived. */
+		private long last;
+
+		/**
+		 * Initializes a change.
+		 *
+		 * @param now time of the first event in nanoseconds
+		 */
+		public Pending(long now) {
+			this.first = now;
+			this.last = now;
+		}
+
+		/**
+		 * Returns when the change should be applied.
+		 *
+		 * @return time in nanoseconds
+		 */
+		public long due() {
+			return Math.min(last + debounce, first + MAX_DELAYS * debounce);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of host name lookups shared by every thread of a crawl, so
+ * a crawl of thousands of pages on one site resolves the host once instead of
+ * once per fetch. Successful lookups are kept for a fixed time to live, and
+ * failed lookups for a shorter time so a missing host does not stall every link
+ * pointing at it. Threads that miss on the same host at once share a single
+ * lookup instead of each resolving it.
+ *
+ * @author dionfeng
+ *
+ */
+public class DnsCache {
+	/** The default time to live of a successful lookup in seconds. */
+	public static final int DEFAULT_TTL = 300;
+
+	/** The default time to live of a failed lookup in seconds. */
+	public static final int DEFAULT_NEGATIVE_TTL = 30;
+
+	/** Cached lookups by lowercase host name. */
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/** Time to live of a successful lookup in nanoseconds. */
+	private final long ttl;
+
+	/** Time to live of a failed lookup in nanoseconds. */
+	private final long negativeTtl;
+
+	/** Number of lookups answered from the cache. */
+	private final LongAdder hits;
+
+	/** Number of lookups that had to be resolved. */
+	private final LongAdder misses;
+
+	/** Number of lookups answered with a cached failure. */
+	private final LongAdder negativeHits;
+
+	/**
+	 * Initializes a cache with the default times to live.
+	 */
+	public DnsCache() {
+		this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * Initializes a cache with the given times to live.
+	 *
+	 * @param ttlSeconds         seconds to keep a successful lookup
+	 * @param negativeTtlSeconds seconds to keep a failed lookup
+	 */
+	public DnsCache(int ttlSeconds, int negativeTtlSeconds) {
+		this.entries = new ConcurrentHashMap<>();
+		this.ttl = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+		this.negativeTtl = TimeUnit.SECONDS.toNanos(Math.max(0, negativeTtlSeconds));
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.negativeHits = new LongAdder();
+	}
+
+	/**
+	 * Returns the address of the host, resolving it only if there is no live
+	 * cached lookup. If another thread is already resolving the host, waits for
+	 * its lookup instead.
+	 *
+	 * @param host the host name or address literal
+	 * @return the first address of the host
+	 * @throws UnknownHostException if the host could not be resolved, now or
+	 *                              within the negative time to live
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException {
+		String key = host.toLowerCase();
+		long now = System.nanoTime();
+
+		Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired(now)) {
+			Entry fresh = new Entry();
+			entry = entries.compute(key, (name, old) -> old == null || old.isExpired(now) ? fresh : old);
+			if (entry == fresh) {
+				misses.increment();
+				lookup(host, key, fresh);
+				return address(host, fresh);
+			}
+		}
+
+		if (entry.address.join() == null) {
+			negativeHits.increment();
+		} else {
+			hits.increment();
+		}
+		return address(host, entry);
+	}
+
+	/**
+	 * Resolves the host and completes the entry with the result.
+	 *
+	 * @param host  the host name or address literal
+	 * @param key   the cache key of the host
+	 * @param entry the entry of the lookup, not completed yet
+	 */
+	private void lookup(String host, String key, Entry entry) {
+		try {
+			InetAddress address = InetAddress.getAllByName(host)[0];
+			entry.expires = System.nanoTime() + ttl;
+			entry.address.complete(address);
+		} catch (UnknownHostException e) {
+			entry.expires = System.nanoTime() + negativeTtl;
+			entry.address.complete(null);
+		} catch (RuntimeException e) {
+			// not a lookup failure worth caching, let the next caller try again
+			entries.remove(key, entry);
+			entry.address.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the lookup of an entry and returns its address.
+	 *
+	 * @param host  the host name or address literal
+	 * @param entry the entry of the lookup
+	 * @return the address of the host
+	 * @throws UnknownHostException if the lookup failed
+	 */
+	private InetAddress address(String host, Entry entry) throws UnknownHostException {
+		InetAddress address = entry.address.join();
+		if (address == null) {
+			throw new UnknownHostException(host);
+		}
+		return address;
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache, including cached
+	 * failures.
+	 *
+	 * @return number of cache hits
+	 */
+	public long getHits() {
+		return hits.sum() + negativeHits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups answered with a cached failure.
+	 *
+	 * @return number of negative cache hits
+	 */
+	public long getNegativeHits() {
+		return negativeHits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that had to be resolved.
+	 *
+	 * @return number of cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of lookups answered from the cache.
+	 *
+	 * @return the hit rate, or 0 if nothing was looked up
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Returns the number of hosts cached.
+	 *
+	 * @return number of cached lookups
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hosts, %d hits (%d negative), %d misses, hit rate: %.2f", size(), getHits(),
+				getNegativeHits(), getMisses(), getHitRate());
+	}
+
+	/**
+	 * A cached lookup, completed once by the thread that resolves it.
+	 */
+	private static class Entry {
+		/** The resolved address, or {@code null} if the lookup failed. */
+		private final CompletableFuture<InetAddress> address;
+
+		/** The {@link System#nanoTime()} the lookup expires at, set when done. */
+		private volatile long expires;
+
+		/**
+		 * Initializes a lookup in progress.
+		 */
+		public Entry() {
+			this.address = new CompletableFuture<>();
+		}
+
+		/**
+		 * Returns whether the lookup is done and has expired. A lookup in progress
+		 * never expires.
+		 *
+		 * @param now the current {@link System#nanoTime()}
+		 * @return {@code true} if the lookup must be resolved again
+		 */
+		public boolean isExpired(long now) {
+			return address.isDone() && now - expires > 0;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 
 /**
  * Class responsible for running this project based on the provided command-line
@@ -61,6 +62,150 @@ public class Driver {
 	 */
 	public final static String serverFlag = "-server";
 
+	/**
+	 * @bloomFlag bloom flag format with "-bloom", tracks crawled urls in a Bloom
+	 *            filter instead of an exact fingerprint set
+	 */
+	public final static String bloomFlag = "-bloom";
+
+	/**
+	 * @simhashFlag simhash flag format with "-simhash", skips indexing pages within
+	 *              the given Hamming distance of a page already crawled
+	 */
+	public final static String simhashFlag = "-simhash";
+
+	/**
+	 * @followFlag follow flag format with "-followdups", still crawls the links of
+	 *             near-duplicate pages
+	 */
+	public final static String followFlag = "-followdups";
+
+	/**
+	 * @crawlStateFlag crawl state flag format with "-crawlstate", keeps the crawl
+	 *                 frontier and index checkpoints in the given directory so an
+	 *                 interrupted crawl can resume
+	 */
+	public final static String crawlStateFlag = "-crawlstate";
+
+	/**
+	 * @checkpointFlag checkpoint flag format with "-checkpoint", number of pages
+	 *                 crawled between index checkpoints
+	 */
+	public final static String checkpointFlag = "-checkpoint";
+
+	/**
+	 * @delayFlag delay flag format with "-delay", minimum milliseconds between the
+	 *            start of two requests to the same host
+	 */
+	public final static String delayFlag = "-delay";
+
+	/**
+	 * @hostFlag host flag format with "-hostthreads", most concurrent requests to
+	 *           the same host
+	 */
+	public final static String hostFlag = "-hostthreads";
+
+	/**
+	 * @connectFlag connect flag format with "-connecttimeout", milliseconds to wait
+	 *              for a connection to a crawled host
+	 */
+	public final static String connectFlag = "-connecttimeout";
+
+	/**
+	 * @readFlag read flag format with "-readtimeout", milliseconds to wait for any
+	 *           single read from a crawled host
+	 */
+	public final static String readFlag = "-readtimeout";
+
+	/**
+	 * @deadlineFlag deadline flag format with "-deadline", milliseconds allowed for
+	 *               a whole fetch including redirects
+	 */
+	public final static String deadlineFlag = "-deadline";
+
+	/**
+	 * @dnsFlag dns flag format with "-dnsttl", seconds to cache the address of a
+	 *          crawled host
+	 */
+	public final static String dnsFlag = "-dnsttl";
+
+	/**
+	 * @recrawlFlag recrawl flag format with "-recrawl", refreshes the index kept in
+	 *              the crawl state directory, only re-indexing pages that changed
+	 */
+	public final static String recrawlFlag = "-recrawl";
+
+	/**
+	 * @parseFlag parse flag format with "-parsethreads", number of threads parsing
+	 *            crawled pages while the work queue threads fetch
+	 */
+	public final static String parseFlag = "-parsethreads";
+
+	/**
+	 * @storeFlag store flag format with "-store", keeps the compressed text of
+	 *            every crawled page in the given directory
+	 */
+	public final static String storeFlag = "-store";
+
+	/**
+	 * @reindexFlag reindex flag format with "-reindex", rebuilds the index from the
+	 *              pages kept in the given store directory without crawling
+	 */
+	public final static String reindexFlag = "-reindex";
+
+	/**
+	 * @memoryFlag memory flag format with "-memory", percentage of the heap above
+	 *             which crawling pauses and, a little higher, spills the index
+	 */
+	public final static String memoryFlag = "-memory";
+
+	/**
+	 * @postingsFlag postings flag format with "-maxpostings", most word positions
+	 *               kept in memory before the index spills to disk; a "-text"
+	 *               build that is not searched afterwards merges the spilled
+	 *               segments straight into "-index" and "-counts"
+	 */
+	public final static String postingsFlag = "-maxpostings";
+
+	/**
+	 * @spillFlag spill flag format with "-spilldir", directory for index segments
+	 *            spilled to disk
+	 */
+	public final static String spillFlag = "-spilldir";
+
+	/**
+	 * @chunkFlag chunk flag format with "-chunksize", kilobytes above which a text
+	 *            file is split into chunks indexed by several threads
+	 */
+	public final static String chunkFlag = "-chunksize";
+
+	/**
+	 * @indexStateFlag index state flag format with "-indexstate", keeps a snapshot
+	 *                 of the index and a manifest of the text files in the given
+	 *                 directory so the next build only indexes what changed
+	 */
+	public final static String indexStateFlag = "-indexstate";
+
+	/**
+	 * @watchFlag watch flag format with "-watch", keeps the "-text" index served
+	 *            by "-server" up to date as files change, re-indexing a file once
+	 *            it has not changed for the given milliseconds
+	 */
+	public final static String watchFlag = "-watch";
+
+	/**
+	 * @segmentsFlag segments flag format with "-segments", keeps the index as
+	 *               immutable segments merged in the background plus a buffer
+	 *               of the given number of word positions, for indexing while
+	 *               searching
+	 */
+	public final static String segmentsFlag = "-segments";
+
+	/**
+	 * @BLOOM_FPP false positive rate of the crawled url Bloom filter
+	 */
+	public final static double BLOOM_FPP = 0.001;
+
 	/**
 	 * @defaultPath default index path to write Json file
 	 */
@@ -107,8 +252,13 @@ public class Driver {
 		WorkQueue taskManagerQueue = null;
 		MultiThreadCrawler crawler = null;
 		SearchEngineServer engineServer = null;
+		ContentStore contentStore = null;
+		DirectoryWatcher watcher = null;
+		MemoryGovernor governor = null;
 
-		if (processor.hasFlag(threadFlag) || processor.hasFlag(htmlFlag) || processor.hasFlag(serverFlag)) {
+		if (processor.hasFlag(threadFlag) || processor.hasFlag(htmlFlag) || processor.hasFlag(serverFlag)
+				|| processor.hasFlag(reindexFlag) || processor.hasFlag(memoryFlag) || processor.hasFlag(postingsFlag)
+				|| processor.hasFlag(segmentsFlag)) {
 			int threads = processor.getValue(threadFlag, DEFAULT);
 			int port = processor.getValue(serverFlag, PORT);
 			
@@ -119,16 +269,79 @@ public class Driver {
 			
 			taskManagerQueue = new WorkQueue(threads);
 
-			ThreadSafeInvertedIndex threadSafeInvertedIndex = new ThreadSafeInvertedIndex();
-			builder = new MultiThreadIndexBuilder(threadSafeInvertedIndex, taskManagerQueue);
+			ThreadSafeInvertedIndex threadSafeInvertedIndex = processor.hasFlag(segmentsFlag)
+					? new SegmentedInvertedIndex(
+							processor.getValue(segmentsFlag, SegmentedInvertedIndex.DEFAULT_BUFFER_SIZE))
+					: new ThreadSafeInvertedIndex();
+			MultiThreadIndexBuilder multiThreadBuilder = new MultiThreadIndexBuilder(threadSafeInvertedIndex,
+					taskManagerQueue);
+			if (processor.hasValue(chunkFlag)) {
+				multiThreadBuilder.setChunkSize(processor.getValue(chunkFlag,
+						(int) (MultiThreadIndexBuilder.DEFAULT_CHUNK_SIZE / 1024)) * 1024L);
+			}
+			builder = multiThreadBuilder;
 			searcher = new MultiThreadSearcher(threadSafeInvertedIndex, taskManagerQueue);
-			crawler = new MultiThreadCrawler(threadSafeInvertedIndex, taskManagerQueue,
-					processor.getValue(maxFlag, MAX));
+			int max = processor.getValue(maxFlag, MAX);
+			UrlFingerprintSet crawled = processor.hasFlag(bloomFlag) ? new UrlFingerprintSet(max, BLOOM_FPP)
+					: new UrlFingerprintSet();
+			crawler = new MultiThreadCrawler(threadSafeInvertedIndex, taskManagerQueue, max, crawled);
+			if (processor.hasFlag(simhashFlag)) {
+				crawler.setDuplicateDetector(new NearDuplicateDetector(
+						processor.getValue(simhashFlag, NearDuplicateDetector.DEFAULT_DISTANCE),
+						processor.hasFlag(followFlag)));
+			}
+			if (processor.hasFlag(delayFlag) || processor.hasFlag(hostFlag)) {
+				crawler.setScheduler(new HostScheduler(taskManagerQueue, processor.getValue(hostFlag, threads),
+						processor.getValue(delayFlag, HostScheduler.DEFAULT_DELAY)));
+			}
+			crawler.setFetchBudget(new HtmlUtils.FetchBudget(
+					processor.getValue(connectFlag, HtmlUtils.FetchBudget.DEFAULT_CONNECT),
+					processor.getValue(readFlag, HtmlUtils.FetchBudget.DEFAULT_READ),
+					processor.getValue(deadlineFlag, HtmlUtils.FetchBudget.DEFAULT_DEADLINE)));
+			if (processor.hasFlag(dnsFlag)) {
+				crawler.setResolver(new DnsCache(processor.getValue(dnsFlag, DnsCache.DEFAULT_TTL),
+						DnsCache.DEFAULT_NEGATIVE_TTL));
+			}
+			if (processor.hasValue(parseFlag)) {
+				crawler.setParseThreads(processor.getValue(parseFlag, Runtime.getRuntime().availableProcessors()));
+			}
+			if (processor.hasValue(crawlStateFlag)) {
+				crawler.setCheckpoint(new CrawlCheckpoint(processor.getPath(crawlStateFlag),
+						processor.getValue(checkpointFlag, CrawlCheckpoint.DEFAULT_INTERVAL),
+						processor.hasFlag(recrawlFlag)));
+			}
+			if (processor.hasFlag(memoryFlag) || processor.hasFlag(postingsFlag)) {
+				governor = new MemoryGovernor(processor.getValue(memoryFlag, MemoryGovernor.DEFAULT_PAUSE),
+						processor.getValue(postingsFlag, Integer.MAX_VALUE),
+						processor.hasValue(spillFlag) ? processor.getPath(spillFlag) : null);
+				crawler.setMemoryGovernor(governor);
+				if (!processor.hasFlag(queryFlag) && !processor.hasFlag(serverFlag)
+						&& !processor.hasValue(indexStateFlag)) {
+					multiThreadBuilder.setMemoryGovernor(governor);
+				}
+			}
+			if (processor.hasValue(storeFlag)) {
+				try {
+					contentStore = new ContentStore(processor.getPath(storeFlag));
+					crawler.setContentStore(contentStore);
+				} catch (IOException e) {
+					System.err.println("Unable to open content store at " + processor.getValue(storeFlag));
+				}
+			}
 			invertIndex = threadSafeInvertedIndex;
 			
 			if (processor.hasFlag(serverFlag)) {
 				try {
-					crawler.crawl(processor.getValue(htmlFlag));
+					if (processor.hasValue(htmlFlag) || !processor.hasFlag(watchFlag)) {
+						crawler.crawl(processor.getValue(htmlFlag));
+						if (governor != null) {
+							governor.merge(threadSafeInvertedIndex);
+						}
+					}
+					if (processor.hasFlag(watchFlag) && processor.hasValue(textFlag)) {
+						watcher = multiThreadBuilder.watch(processor.getPath(textFlag),
+								processor.getValue(watchFlag, DirectoryWatcher.DEFAULT_DEBOUNCE));
+					}
 					engineServer = new SearchEngineServer(port, threadSafeInvertedIndex);
 					engineServer.startServer();
 				} catch (Exception e) {
@@ -147,14 +360,51 @@ public class Driver {
 			} catch (IOException e) {
 				System.err.println("Unable to crawl web page: "+ processor.getValue(htmlFlag));
 			}
+
+			// spilled pages are only loaded back if the index is searched or saved
+			if (governor != null && (processor.hasFlag(queryFlag) || processor.hasValue(indexStateFlag))) {
+				try {
+					governor.merge(invertIndex);
+				} catch (IOException e) {
+					System.err.println("Unable to merge spilled index segments");
+				}
+			}
+		}
+
+		if (processor.hasValue(reindexFlag)) {
+			try (ContentStore store = new ContentStore(processor.getPath(reindexFlag))) {
+				builder.build(store);
+			} catch (IOException e) {
+				System.err.println("Unable to rebuild index from store at " + processor.getValue(reindexFlag));
+			}
 		}
 
-		if (processor.hasValue(textFlag)) {
+		if (processor.hasValue(textFlag) && watcher == null) {
+			IndexManifest manifest = null;
+			if (processor.hasValue(indexStateFlag)) {
+				try {
+					manifest = IndexManifest.load(processor.getPath(indexStateFlag), invertIndex);
+				} catch (IOException e) {
+					System.err.println("Unable to read index state at " + processor.getValue(indexStateFlag));
+					invertIndex.removeLocations(List.copyOf(invertIndex.getCountLocations()));
+					manifest = new IndexManifest();
+				}
+				builder.setManifest(manifest);
+			}
+
 			try {
 				builder.build(processor.getPath(textFlag));
 			} catch (IOException e) {
 				System.err.println("Text Flag! Unable to read file at " + processor.getValue(textFlag));
 			}
+
+			if (manifest != null) {
+				try {
+					manifest.save(processor.getPath(indexStateFlag), invertIndex);
+				} catch (IOException e) {
+					System.err.println("Unable to write index state at " + processor.getValue(indexStateFlag));
+				}
+			}
 		}
 
 		if (processor.hasValue(queryFlag)) {
@@ -173,19 +423,29 @@ public class Driver {
 			}
 		}
 
-		if (processor.hasFlag(countFlag)) {
+		if (governor != null && governor.getSegments() > 0) {
 			try {
-				invertIndex.writeCount(processor.getPath(countFlag, countPath));
+				governor.writeJson(invertIndex,
+						processor.hasFlag(indexFlag) ? processor.getPath(indexFlag, indexPath) : null,
+						processor.hasFlag(countFlag) ? processor.getPath(countFlag, countPath) : null);
 			} catch (IOException e) {
-				System.err.println("Count Flag! Unable to open file " + processor.getValue(countFlag));
+				System.err.println("Unable to merge spilled index segments into the output");
+			}
+		} else {
+			if (processor.hasFlag(countFlag)) {
+				try {
+					invertIndex.writeCount(processor.getPath(countFlag, countPath));
+				} catch (IOException e) {
+					System.err.println("Count Flag! Unable to open file " + processor.getValue(countFlag));
+				}
 			}
-		}
 
-		if (processor.hasFlag(indexFlag)) {
-			try {
-				invertIndex.writeJson(processor.getPath(indexFlag, indexPath));
-			} catch (IOException e) {
-				System.err.println("Index Flag! Unable to write to JSON file at " + processor.getValue(indexFlag));
+			if (processor.hasFlag(indexFlag)) {
+				try {
+					invertIndex.writeJson(processor.getPath(indexFlag, indexPath));
+				} catch (IOException e) {
+					System.err.println("Index Flag! Unable to write to JSON file at " + processor.getValue(indexFlag));
+				}
 			}
 		}
 		
@@ -193,6 +453,26 @@ public class Driver {
 			taskManagerQueue.shutdown();
 		}
 
+		if (invertIndex instanceof SegmentedInvertedIndex) {
+			((SegmentedInvertedIndex) invertIndex).close();
+		}
+
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				System.err.println("Unable to stop watching " + processor.getValue(textFlag));
+			}
+		}
+
+		if (contentStore != null) {
+			try {
+				contentStore.close();
+			} catch (IOException e) {
+				System.err.println("Unable to close content store at " + processor.getValue(storeFlag));
+			}
+		}
+
 		// calculate time elapsed and output
 		Duration elapsed = Duration.between(start, Instant.now());
 		double seconds = (double) elapsed.toMillis() / Duration.ofSeconds(1).toMillis();
@@ -4,6 +4,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Class that traverse file directory and text files
@@ -45,6 +46,35 @@ public class FilesFinder {
 		}
 	}
 
+	/**
+	 * Walk the directory on the work queue, one task per directory, passing each
+	 * text file to the consumer as soon as it is found instead of collecting every
+	 * file first. Subdirectories are walked in parallel, so files are passed on
+	 * from several threads in no particular order. Call {@link WorkQueue#finish()}
+	 * to wait for the walk to end.
+	 *
+	 * @param path   directory path
+	 * @param queue  work queue to walk the directories on
+	 * @param files  receives every text file found, normalized
+	 * @param errors receives every directory that could not be read, whose files
+	 *               may be missing
+	 */
+	public static void traverseDirectory(Path path, WorkQueue queue, Consumer<Path> files, Consumer<Path> errors) {
+		queue.execute(() -> {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path p : stream) {
+					if (Files.isDirectory(p)) {
+						traverseDirectory(p, queue, files, errors);
+					} else if (isTextFile(p)) {
+						files.accept(p.normalize());
+					}
+				}
+			} catch (IOException e) {
+				errors.accept(path);
+			}
+		});
+	}
+
 	/**
 	 * Helper method checks if the file is a text file
 	 *
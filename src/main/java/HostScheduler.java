@@ -0,0 +1,360 @@
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Crawl frontier that keeps a queue of fetch tasks per host and only hands a
+ * task to the {@link WorkQueue} when its host is allowed another request. Each
+ * host has a concurrency limit and a minimum delay between the start of two
+ * requests.
+ *
+ * <p>
+ * The concurrency limit of each host adapts to the server (additive increase,
+ * multiplicative decrease). It grows by one request per round of successful
+ * fetches while latency stays close to the best latency seen for that host. It
+ * is cut back when latency climbs or the server fails or asks the crawler to
+ * slow down, and errors also back off the delay before the next request. A
+ * crawl over many hosts can therefore keep every worker busy while no single
+ * server gets more than it can handle.
+ *
+ * @author dionfeng
+ *
+ */
+public class HostScheduler {
+	/** The default number of concurrent requests a host starts with. */
+	public static final int DEFAULT_INITIAL = 2;
+
+	/** The default minimum delay in milliseconds between requests to a host. */
+	public static final int DEFAULT_DELAY = 0;
+
+	/** Largest delay in milliseconds that errors back a host off to. */
+	public static final long MAX_BACKOFF = 10000;
+
+	/** Latency above this multiple of the best latency of a host counts as slow. */
+	private static final double SLOW_FACTOR = 2.0;
+
+	/** Latency within this many nanoseconds of the best latency never counts as slow. */
+	private static final long SLOW_MARGIN = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/** Weight of a new latency sample in the smoothed latency. */
+	private static final double SMOOTHING = 0.2;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Workers that run the dispatched tasks. */
+	private final WorkQueue workers;
+
+	/** Most concurrent requests any host is allowed. */
+	private final int maxConcurrency;
+
+	/** Minimum delay in nanoseconds between the start of requests to a host. */
+	private final long minDelay;
+
+	/** State of every host seen, guarded by this scheduler. */
+	private final Map<String, Host> hosts;
+
+	/** Runs dispatches that have to wait for the delay of a host. */
+	private final ScheduledExecutorService timer;
+
+	/** Number of tasks submitted and not yet finished, guarded by this scheduler. */
+	private int outstanding;
+
+	/** Number of times a host limit was decreased. */
+	private final LongAdder decreases;
+
+	/** Number of failed requests reported. */
+	private final LongAdder failures;
+
+	/**
+	 * Initializes a scheduler that lets each host use up to every worker with no
+	 * delay between requests.
+	 *
+	 * @param workers the work queue to run tasks on
+	 */
+	public HostScheduler(WorkQueue workers) {
+		this(workers, workers.size(), DEFAULT_DELAY);
+	}
+
+	/**
+	 * Initializes a scheduler with the given per-host limits.
+	 *
+	 * @param workers        the work queue to run tasks on
+	 * @param maxConcurrency most concurrent requests to a single host
+	 * @param delayMillis    minimum delay in milliseconds between the start of two
+	 *                       requests to a single host
+	 */
+	public HostScheduler(WorkQueue workers, int maxConcurrency, long delayMillis) {
+		this.workers = workers;
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.minDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		this.hosts = new HashMap<>();
+		this.outstanding = 0;
+		this.decreases = new LongAdder();
+		this.failures = new LongAdder();
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "HostScheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues a task that fetches the url. The task runs on the work queue once the
+	 * host of the url has a free request slot and its delay has passed.
+	 *
+	 * @param url  the url the task fetches
+	 * @param task the task to run
+	 */
+	public void submit(URL url, Runnable task) {
+		String key = key(url);
+		synchronized (this) {
+			outstanding++;
+			hosts.computeIfAbsent(key, k -> new Host(Math.min(DEFAULT_INITIAL, maxConcurrency))).pending
+					.addLast(task);
+		}
+		dispatch(key);
+	}
+
+	/**
+	 * Reports how a request to the host of the url went, adapting the concurrency
+	 * limit and delay of that host.
+	 *
+	 * @param url     the url that was fetched
+	 * @param nanos   how long the request took in nanoseconds
+	 * @param success {@code false} if the request failed or the server asked the
+	 *                crawler to slow down
+	 */
+	public void report(URL url, long nanos, boolean success) {
+		String key = key(url);
+		synchronized (this) {
+			Host host = hosts.get(key);
+			if (host == null) {
+				return;
+			}
+
+			if (!success) {
+				failures.increment();
+				host.backoff = host.backoff == 0 ? Math.max(minDelay, TimeUnit.MILLISECONDS.toNanos(100))
+						: Math.min(host.backoff * 2, TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF));
+				decrease(key, host);
+				return;
+			}
+
+			host.backoff = 0;
+			host.latency = host.latency == 0 ? nanos : (1 - SMOOTHING) * host.latency + SMOOTHING * nanos;
+			host.best = host.best == 0 ? host.latency : Math.min(host.best, host.latency);
+
+			if (host.latency > SLOW_FACTOR * host.best && host.latency - host.best > SLOW_MARGIN) {
+				decrease(key, host);
+			} else if (host.limit < maxConcurrency) {
+				host.limit = Math.min(maxConcurrency, host.limit + 1 / host.limit);
+			}
+		}
+		dispatch(key);
+	}
+
+	/**
+	 * Waits until every submitted task, including tasks submitted by other tasks,
+	 * has finished.
+	 */
+	public synchronized void finish() {
+		while (outstanding > 0) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops the delay timer. Tasks still waiting for their host are dropped.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of hosts seen.
+	 *
+	 * @return number of hosts
+	 */
+	public synchronized int getHosts() {
+		return hosts.size();
+	}
+
+	/**
+	 * Returns the number of times a host had its concurrency limit cut.
+	 *
+	 * @return number of limit decreases
+	 */
+	public long getDecreases() {
+		return decreases.sum();
+	}
+
+	/**
+	 * Returns the number of failed requests reported.
+	 *
+	 * @return number of failures
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Returns the current concurrency limit of the host of the url.
+	 *
+	 * @param url a url on the host
+	 * @return the number of concurrent requests allowed, or 0 if the host was never
+	 *         seen
+	 */
+	public synchronized int getLimit(URL url) {
+		Host host = hosts.get(key(url));
+		return host == null ? 0 : (int) host.limit;
+	}
+
+	/**
+	 * Hands as many queued tasks of the host to the work queue as its limit and
+	 * delay allow, arranging to try again once the delay has passed.
+	 *
+	 * @param key the host key
+	 */
+	private void dispatch(String key) {
+		synchronized (this) {
+			Host host = hosts.get(key);
+			long now = System.nanoTime();
+
+			while (!host.pending.isEmpty() && host.active < (int) host.limit) {
+				long wait = host.nextStart - now;
+				if (wait > 0) {
+					if (!host.waiting && !timer.isShutdown()) {
+						host.waiting = true;
+						timer.schedule(() -> {
+							synchronized (this) {
+								host.waiting = false;
+							}
+							dispatch(key);
+						}, wait, TimeUnit.NANOSECONDS);
+					}
+					break;
+				}
+
+				Runnable task = host.pending.removeFirst();
+				host.active++;
+				host.nextStart = now + Math.max(minDelay, host.backoff);
+				workers.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						release(key);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Frees the request slot of a finished task and dispatches the next task of its
+	 * host.
+	 *
+	 * @param key the host key
+	 */
+	private void release(String key) {
+		synchronized (this) {
+			hosts.get(key).active--;
+			if (--outstanding <= 0) {
+				this.notifyAll();
+			}
+		}
+		dispatch(key);
+	}
+
+	/**
+	 * Halves the concurrency limit of the host, at most once per round of its
+	 * requests in flight.
+	 *
+	 * @param key  the host key
+	 * @param host the host state
+	 */
+	private void decrease(String key, Host host) {
+		long now = System.nanoTime();
+		if (now < host.holdUntil) {
+			return;
+		}
+
+		host.limit = Math.max(1, host.limit / 2);
+		host.holdUntil = now + (long) Math.max(host.latency, minDelay);
+		decreases.increment();
+		log.debug("Reduced concurrency for {} to {}", key, (int) host.limit);
+	}
+
+	/**
+	 * Returns the key identifying the server of the url.
+	 *
+	 * @param url the url
+	 * @return the lowercase host and port
+	 */
+	private static String key(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getHost().toLowerCase() + ":" + port;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d hosts, %d failures, %d concurrency decreases", hosts.size(), getFailures(),
+				getDecreases());
+	}
+
+	/**
+	 * Scheduling state of a single host. Guarded by the scheduler.
+	 */
+	private static class Host {
+		/** Tasks waiting for a request slot. */
+		private final ArrayDeque<Runnable> pending;
+
+		/** Number of requests allowed at once, fractional while increasing. */
+		private double limit;
+
+		/** Number of tasks running. */
+		private int active;
+
+		/** Earliest time the next request may start. */
+		private long nextStart;
+
+		/** Extra delay after errors in nanoseconds, 0 when healthy. */
+		private long backoff;
+
+		/** Smoothed latency in nanoseconds. */
+		private double latency;
+
+		/** Lowest smoothed latency seen in nanoseconds. */
+		private double best;
+
+		/** Limit is not decreased again before this time. */
+		private long holdUntil;
+
+		/** Whether a timer dispatch is already scheduled. */
+		private boolean waiting;
+
+		/**
+		 * Initializes a host with no tasks.
+		 *
+		 * @param limit initial number of requests allowed at once
+		 */
+		public Host(int limit) {
+			this.pending = new ArrayDeque<>();
+			this.limit = limit;
+		}
+	}
+}
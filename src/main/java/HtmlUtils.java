@@ -1,9 +1,18 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -14,13 +23,20 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.commons.text.StringEscapeUtils;
+import org.apache.commons.text.translate.EntityArrays;
 
 /**
  * @author dionfeng
@@ -159,6 +175,306 @@ public class HtmlUtils {
 		}
 	}
 
+	/**
+	 * Single-pass alternative to {@link HtmlCleaner#stripHtml(String)}. Instead of
+	 * running one regular expression per block element followed by separate tag
+	 * and entity passes, the page is scanned once: comments and the head, style,
+	 * script, noscript, iframe, and svg elements are skipped, all other tags are
+	 * dropped, entities are decoded, and the remaining text is appended to a
+	 * single output buffer.
+	 *
+	 * <p>
+	 * Entities are decoded the same way as {@link HtmlCleaner#stripEntities(String)}
+	 * for well-formed input: known HTML 4 and numeric entities become characters
+	 * and unknown entities are removed. A bare {@code &} that does not start an
+	 * entity is kept as text.
+	 *
+	 * <p>
+	 * When given a {@link LinkResolver}, the same scan also collects the href of
+	 * every anchor tag outside the skipped block elements, so a crawled page only
+	 * has to be parsed once for both its text and its links.
+	 * 
+	 * @author dionfeng
+	 *
+	 */
+	public static class HtmlTokenizer {
+		/** Elements removed together with everything between their tags. */
+		private static final String[] BLOCK_ELEMENTS = { "head", "style", "script", "noscript", "iframe", "svg" };
+
+		/** Longest entity name (between {@code &} and {@code ;}) considered. */
+		private static final int MAX_ENTITY = 32;
+
+		/** HTML 4 entity names (without {@code &} and {@code ;}) to characters. */
+		private static final Map<String, String> ENTITIES = new HashMap<>();
+
+		static {
+			List<Map<CharSequence, CharSequence>> tables = List.of(EntityArrays.BASIC_UNESCAPE,
+					EntityArrays.ISO8859_1_UNESCAPE, EntityArrays.HTML40_EXTENDED_UNESCAPE);
+			for (Map<CharSequence, CharSequence> table : tables) {
+				for (Map.Entry<CharSequence, CharSequence> entry : table.entrySet()) {
+					String entity = entry.getKey().toString();
+					ENTITIES.put(entity.substring(1, entity.length() - 1), entry.getValue().toString());
+				}
+			}
+		}
+
+		/**
+		 * Removes comments, block elements, tags, and entities from the provided
+		 * HTML in a single pass.
+		 *
+		 * @param html the HTML to convert to text
+		 * @return the text of the page
+		 *
+		 * @see HtmlCleaner#stripHtml(String)
+		 */
+		public static String stripHtml(String html) {
+			StringBuilder text = new StringBuilder(html.length());
+			stripHtml(html, text);
+			return text.toString();
+		}
+
+		/**
+		 * Removes comments, block elements, tags, and entities from the provided
+		 * HTML in a single pass, appending the remaining text to the buffer.
+		 *
+		 * @param html the HTML to convert to text
+		 * @param text where to append the text of the page
+		 */
+		public static void stripHtml(String html, StringBuilder text) {
+			stripHtml(html, text, null, null);
+		}
+
+		/**
+		 * Removes comments, block elements, tags, and entities from the provided
+		 * HTML in a single pass, appending the remaining text to the buffer and the
+		 * valid HTTP(S) links of the anchor tags to the list. Links are made absolute
+		 * and normalized by the resolver, in the order they were found.
+		 *
+		 * @param html     the HTML to convert to text
+		 * @param text     where to append the text of the page
+		 * @param resolver resolves links against the page url, or {@code null} to
+		 *                 skip link extraction
+		 * @param links    where to add the links found
+		 *
+		 * @see LinkParser#getValidLinks(URL, String)
+		 */
+		public static void stripHtml(String html, StringBuilder text, LinkResolver resolver, List<String> links) {
+			int length = html.length();
+			int i = 0;
+
+			while (i < length) {
+				// copy the run of plain text up to the next markup character at once
+				int start = i;
+				while (i < length && html.charAt(i) != '<' && html.charAt(i) != '&') {
+					i++;
+				}
+				text.append(html, start, i);
+
+				if (i >= length) {
+					break;
+				}
+
+				if (html.charAt(i) == '<') {
+					int next = skipMarkup(html, i);
+					if (next > i && resolver != null && isOpenTag(html, i, "a")) {
+						addLink(html, i + 2, next - 1, resolver, links);
+					}
+					if (next > i) {
+						i = next;
+					} else {
+						text.append('<');
+						i++;
+					}
+				} else {
+					i = decodeEntity(html, i, text);
+				}
+			}
+		}
+
+		/**
+		 * Finds the end of the comment, block element, or tag starting at the given
+		 * {@code <} character.
+		 *
+		 * @param html  the HTML being scanned
+		 * @param start index of the {@code <} character
+		 * @return the index just past the markup, or {@code start} if the
+		 *         {@code <} does not begin any markup
+		 */
+		private static int skipMarkup(String html, int start) {
+			if (html.startsWith("<!--", start)) {
+				int end = html.indexOf("-->", start + 4);
+				if (end >= 0) {
+					return end + 3;
+				}
+			}
+
+			for (String element : BLOCK_ELEMENTS) {
+				if (isOpenTag(html, start, element)) {
+					int end = findCloseTag(html, start + 1 + element.length(), element);
+					if (end >= 0) {
+						return end;
+					}
+					break;
+				}
+			}
+
+			int end = html.indexOf('>', start + 1);
+			return end < 0 ? start : end + 1;
+		}
+
+		/**
+		 * Finds the href attribute inside an anchor tag and adds the resolved link.
+		 *
+		 * @param html     the HTML being scanned
+		 * @param start    index just past the tag name
+		 * @param end      index of the {@code >} ending the tag
+		 * @param resolver resolves the link against the page url
+		 * @param links    where to add the resolved link
+		 */
+		private static void addLink(String html, int start, int end, LinkResolver resolver, List<String> links) {
+			for (int i = start; i + 4 <= end; i++) {
+				if (!html.regionMatches(true, i, "href", 0, 4) || !Character.isWhitespace(html.charAt(i - 1))) {
+					continue;
+				}
+
+				int j = i + 4;
+				while (j < end && Character.isWhitespace(html.charAt(j))) {
+					j++;
+				}
+				if (j >= end || html.charAt(j) != '=') {
+					continue;
+				}
+				j++;
+				while (j < end && Character.isWhitespace(html.charAt(j))) {
+					j++;
+				}
+				if (j >= end || (html.charAt(j) != '"' && html.charAt(j) != '\'')) {
+					continue;
+				}
+
+				int close = html.indexOf(html.charAt(j), j + 1);
+				if (close > j + 1 && close < end) {
+					String link = resolver.resolve(html.substring(j + 1, close));
+					if (link != null) {
+						links.add(link);
+					}
+				}
+				return;
+			}
+		}
+
+		/**
+		 * Determines whether an opening tag for the element begins at the given
+		 * {@code <} character, ignoring case.
+		 *
+		 * @param html    the HTML being scanned
+		 * @param start   index of the {@code <} character
+		 * @param element the lowercase element name
+		 * @return {@code true} if the element's opening tag starts there
+		 */
+		private static boolean isOpenTag(String html, int start, String element) {
+			int after = start + 1 + element.length();
+			if (after >= html.length() || !html.regionMatches(true, start + 1, element, 0, element.length())) {
+				return false;
+			}
+			char next = html.charAt(after);
+			return next == '>' || next == '|' || Character.isWhitespace(next);
+		}
+
+		/**
+		 * Finds the closing tag of the element, ignoring case and allowing
+		 * whitespace before the {@code >} character.
+		 *
+		 * @param html    the HTML being scanned
+		 * @param from    index to start searching from
+		 * @param element the lowercase element name
+		 * @return the index just past the closing tag, or -1 if there is none
+		 */
+		private static int findCloseTag(String html, int from, String element) {
+			int close = html.indexOf("</", from);
+			while (close >= 0) {
+				int i = close + 2;
+				if (html.regionMatches(true, i, element, 0, element.length())) {
+					i += element.length();
+					while (i < html.length() && Character.isWhitespace(html.charAt(i))) {
+						i++;
+					}
+					if (i < html.length() && html.charAt(i) == '>') {
+						return i + 1;
+					}
+				}
+				close = html.indexOf("</", close + 2);
+			}
+			return -1;
+		}
+
+		/**
+		 * Decodes the entity starting at the given {@code &} character. Known
+		 * entities are appended as characters, unknown ones are dropped, and an
+		 * {@code &} that does not start an entity is appended as is.
+		 *
+		 * @param html  the HTML being scanned
+		 * @param start index of the {@code &} character
+		 * @param text  where to append the decoded text
+		 * @return the index just past the entity
+		 */
+		private static int decodeEntity(String html, int start, StringBuilder text) {
+			int limit = Math.min(html.length(), start + 2 + MAX_ENTITY);
+			int end = start + 1;
+			while (end < limit && (Character.isLetterOrDigit(html.charAt(end)) || html.charAt(end) == '#')) {
+				end++;
+			}
+
+			if (end == start + 1 || end >= limit || html.charAt(end) != ';') {
+				text.append('&');
+				return start + 1;
+			}
+
+			if (html.charAt(start + 1) == '#') {
+				int codePoint = parseNumeric(html, start + 2, end);
+				if (codePoint >= 0) {
+					text.appendCodePoint(codePoint);
+				}
+			} else {
+				String decoded = ENTITIES.get(html.substring(start + 1, end));
+				if (decoded != null) {
+					text.append(decoded);
+				}
+			}
+
+			return end + 1;
+		}
+
+		/**
+		 * Parses the digits of a numeric character reference.
+		 *
+		 * @param html  the HTML being scanned
+		 * @param start index just past the {@code #} character
+		 * @param end   index of the {@code ;} character
+		 * @return the code point, or -1 if the reference is invalid
+		 */
+		private static int parseNumeric(String html, int start, int end) {
+			int radix = 10;
+			if (start < end && (html.charAt(start) == 'x' || html.charAt(start) == 'X')) {
+				radix = 16;
+				start++;
+			}
+			if (start >= end || end - start > 8) {
+				return -1;
+			}
+
+			int codePoint = 0;
+			for (int i = start; i < end; i++) {
+				int digit = Character.digit(html.charAt(i), radix);
+				if (digit < 0) {
+					return -1;
+				}
+				codePoint = codePoint * radix + digit;
+			}
+			return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+		}
+	}
+
 	/**
 	 * A specialized version of {@link HttpsFetcher} that follows redirects and
 	 * returns HTML content if possible.
@@ -217,10 +533,31 @@ public class HtmlUtils {
 		 * @return the html or {@code null} if unable to fetch the resource or the
 		 *         resource is not html
 		 *
+		 * @see #fetch(URL, int, FetchStatistics)
+		 */
+		public static String fetch(URL url, int redirects) {
+			return fetch(url, redirects, new FetchStatistics());
+		}
+
+		/**
+		 * Fetches the resource at the URL using HTTP/1.1 and sockets, asking the server
+		 * for a gzip or deflate compressed response. If the status code is 200 and the
+		 * content type is HTML, returns the decompressed HTML as a single string joined
+		 * by {@link System#lineSeparator()}. If the status code is a valid redirect,
+		 * will follow that redirect if the number of redirects is greater than 0.
+		 * Otherwise, returns {@code null}. The transferred and decoded body sizes are
+		 * added to the provided statistics.
+		 *
+		 * @param url        the url to fetch
+		 * @param redirects  the number of times to follow redirects
+		 * @param statistics the transfer statistics to update
+		 * @return the html or {@code null} if unable to fetch the resource or the
+		 *         resource is not html
+		 *
 		 * @see HttpsFetcher#openConnection(URL)
 		 * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-		 * @see HttpsFetcher#getHeaderFields(BufferedReader)
-		 * @see HttpsFetcher#getContent(BufferedReader)
+		 * @see HttpsFetcher#getHeaderFields(InputStream)
+		 * @see HttpsFetcher#getContent(InputStream, Map, FetchStatistics)
 		 *
 		 * @see String#join(CharSequence, CharSequence...)
 		 * @see System#lineSeparator()
@@ -228,28 +565,132 @@ public class HtmlUtils {
 		 * @see #isHtml(Map)
 		 * @see #isRedirect(Map)
 		 */
-		public static String fetch(URL url, int redirects) {
-			String html = null;
+		public static String fetch(URL url, int redirects, FetchStatistics statistics) {
+			try {
+				return fetchPage(url, redirects, statistics, FetchBudget.DEFAULT);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Fetches the resource at the URL the same way as
+		 * {@link #fetch(URL, int, FetchStatistics)}, but reports failures that say
+		 * something about the health of the server instead of returning {@code null}.
+		 * A resource that is missing or not html still returns {@code null}. The
+		 * connection, every read and the fetch as a whole, including redirects, are
+		 * bounded by the budget; a fetch that runs out of time is abandoned and
+		 * counted in the statistics.
+		 *
+		 * @param url        the url to fetch
+		 * @param redirects  the number of times to follow redirects
+		 * @param statistics the transfer statistics to update
+		 * @param budget     the time allowed for the fetch
+		 * @return the html or {@code null} if the resource is not html
+		 * @throws SocketTimeoutException if the fetch ran out of time
+		 * @throws IOException            if unable to connect or read, or the server
+		 *                                responded with status 429 or a 5xx status
+		 */
+		public static String fetchPage(URL url, int redirects, FetchStatistics statistics, FetchBudget budget)
+				throws IOException {
+			return fetchPage(url, redirects, statistics, budget, null);
+		}
+
+		/**
+		 * Fetches the resource at the URL like
+		 * {@link #fetchPage(URL, int, FetchStatistics, FetchBudget)}, looking up hosts
+		 * in the given cache instead of resolving them for every fetch.
+		 *
+		 * @param url        the url to fetch
+		 * @param redirects  the number of times to follow redirects
+		 * @param statistics the transfer statistics to update
+		 * @param budget     the time allowed for the fetch
+		 * @param resolver   the host lookup cache, or {@code null} to resolve every
+		 *                   time
+		 * @return the html or {@code null} if the resource is not html
+		 * @throws SocketTimeoutException if the fetch ran out of time
+		 * @throws IOException            if unable to connect or read, or the server
+		 *                                responded with status 429 or a 5xx status
+		 */
+		public static String fetchPage(URL url, int redirects, FetchStatistics statistics, FetchBudget budget,
+				DnsCache resolver) throws IOException {
+			return fetchConditional(url, redirects, statistics, budget, resolver, null, null).getHtml();
+		}
+
+		/**
+		 * Fetches the resource at the URL like
+		 * {@link #fetchPage(URL, int, FetchStatistics, FetchBudget, DnsCache)}, asking
+		 * the server to only send the page if it changed since it was last fetched.
+		 * An unchanged page comes back with status 304 and no html.
+		 *
+		 * @param url          the url to fetch
+		 * @param redirects    the number of times to follow redirects
+		 * @param statistics   the transfer statistics to update
+		 * @param budget       the time allowed for the fetch
+		 * @param resolver     the host lookup cache, or {@code null} to resolve every
+		 *                     time
+		 * @param etag         the entity tag of the last fetch, or {@code null}
+		 * @param lastModified the last modified date of the last fetch, or
+		 *                     {@code null}
+		 * @return the status, html and validators of the response
+		 * @throws SocketTimeoutException if the fetch ran out of time
+		 * @throws IOException            if unable to connect or read, or the server
+		 *                                responded with status 429 or a 5xx status
+		 */
+		public static FetchResult fetchConditional(URL url, int redirects, FetchStatistics statistics,
+				FetchBudget budget, DnsCache resolver, String etag, String lastModified) throws IOException {
+			try {
+				return fetchConditional(url, redirects, statistics, budget, resolver, etag, lastModified,
+						budget.deadline());
+			} catch (SocketTimeoutException e) {
+				statistics.timeouts.increment();
+				throw e;
+			}
+		}
 
-			try (Socket socket = HttpsFetcher.openConnection(url);
+		/**
+		 * See
+		 * {@link #fetchConditional(URL, int, FetchStatistics, FetchBudget, DnsCache, String, String)}
+		 * for details. Redirects are followed without the validators, which belong
+		 * to the original url.
+		 *
+		 * @param url          the url to fetch
+		 * @param redirects    the number of times to follow redirects
+		 * @param statistics   the transfer statistics to update
+		 * @param budget       the time allowed for each connect and read
+		 * @param resolver     the host lookup cache, or {@code null}
+		 * @param etag         the entity tag of the last fetch, or {@code null}
+		 * @param lastModified the last modified date of the last fetch, or
+		 *                     {@code null}
+		 * @param deadline     the {@link System#nanoTime()} the fetch must finish by
+		 * @return the status, html and validators of the response
+		 * @throws IOException if unable to fetch in time or the server failed
+		 */
+		private static FetchResult fetchConditional(URL url, int redirects, FetchStatistics statistics,
+				FetchBudget budget, DnsCache resolver, String etag, String lastModified, long deadline)
+				throws IOException {
+			try (Socket socket = HttpsFetcher.openConnection(url, budget, deadline, resolver);
 					PrintWriter request = new PrintWriter(socket.getOutputStream());
-					InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-					BufferedReader response = new BufferedReader(input);) {
+					InputStream response = HttpsFetcher.withDeadline(socket, budget, deadline);) {
 
-				HttpsFetcher.printGetRequest(request, url);
+				HttpsFetcher.printGetRequest(request, url, etag, lastModified);
 				Map<String, List<String>> headersMap = HttpsFetcher.getHeaderFields(response);
-				if (getStatusCode(headersMap) == 200 && isHtml(headersMap)) {
-					List<String> content = HttpsFetcher.getContent(response);
+				int status = getStatusCode(headersMap);
+				String html = null;
+
+				if (status == 200 && isHtml(headersMap)) {
+					List<String> content = HttpsFetcher.getContent(response, headersMap, statistics);
 					html = String.join(System.lineSeparator(), content);
 				} else if (isRedirect(headersMap) && isHtml(headersMap) && redirects > 0) {
-					html = fetch(headersMap.get("Location").get(0), --redirects);
+					return fetchConditional(new URL(url, headersMap.get("Location").get(0)), --redirects, statistics,
+							budget, resolver, null, null, deadline);
+				} else if (status == 429 || status >= 500) {
+					throw new IOException("Server responded with status " + status + " for " + url);
 				}
 
-			} catch (IOException e) {
-				html = null;
+				return new FetchResult(url, status, html, HttpsFetcher.getHeader(headersMap, "ETag"),
+						HttpsFetcher.getHeader(headersMap, "Last-Modified"));
 			}
-
-			return html;
 		}
 
 		/**
@@ -305,6 +746,9 @@ public class HtmlUtils {
 	 *
 	 */
 	public static class HttpsFetcher {
+		/** Content codings the fetcher knows how to decode. */
+		public static final String ACCEPT_ENCODING = "gzip, deflate";
+
 		/**
 		 * Fetches the headers and content for the specified URL. The content is placed
 		 * as a list of all the lines fetched under the "Content" key.
@@ -317,12 +761,11 @@ public class HtmlUtils {
 		public static Map<String, List<String>> fetchURL(URL url) throws IOException {
 			try (Socket socket = openConnection(url);
 					PrintWriter request = new PrintWriter(socket.getOutputStream());
-					InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-					BufferedReader response = new BufferedReader(input);) {
+					InputStream response = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);) {
 				printGetRequest(request, url);
 
 				Map<String, List<String>> headers = getHeaderFields(response);
-				List<String> content = getContent(response);
+				List<String> content = getContent(response, headers, new FetchStatistics());
 				headers.put("Content", content);
 
 				return headers;
@@ -355,6 +798,46 @@ public class HtmlUtils {
 		 * @see URL#openConnection()
 		 */
 		public static Socket openConnection(URL url) throws UnknownHostException, IOException {
+			return openConnection(url, FetchBudget.DEFAULT, FetchBudget.DEFAULT.deadline());
+		}
+
+		/**
+		 * Opens a connection like {@link #openConnection(URL)}, giving up if the
+		 * connection is not established within the connect timeout of the budget or
+		 * before the deadline. HTTPS connections are layered over the connected
+		 * socket, so the TLS handshake is bounded by the read timeout.
+		 *
+		 * @param url      the url to connect
+		 * @param budget   the connect and read timeouts to apply
+		 * @param deadline the {@link System#nanoTime()} the fetch must finish by
+		 * @return a socket connection for that url
+		 * @throws UnknownHostException   if the host is not known
+		 * @throws SocketTimeoutException if unable to connect in time
+		 * @throws IOException            if an I/O error occurs when creating the
+		 *                                socket
+		 */
+		public static Socket openConnection(URL url, FetchBudget budget, long deadline)
+				throws UnknownHostException, IOException {
+			return openConnection(url, budget, deadline, null);
+		}
+
+		/**
+		 * Opens a connection like {@link #openConnection(URL, FetchBudget, long)},
+		 * looking the host up in the given cache.
+		 *
+		 * @param url      the url to connect
+		 * @param budget   the connect and read timeouts to apply
+		 * @param deadline the {@link System#nanoTime()} the fetch must finish by
+		 * @param resolver the host lookup cache, or {@code null} to resolve the host
+		 *                 now
+		 * @return a socket connection for that url
+		 * @throws UnknownHostException   if the host is not known
+		 * @throws SocketTimeoutException if unable to connect in time
+		 * @throws IOException            if an I/O error occurs when creating the
+		 *                                socket
+		 */
+		public static Socket openConnection(URL url, FetchBudget budget, long deadline, DnsCache resolver)
+				throws UnknownHostException, IOException {
 			String protocol = url.getProtocol();
 			String host = url.getHost();
 
@@ -362,23 +845,77 @@ public class HtmlUtils {
 			int defaultPort = https ? 443 : 80;
 			int port = url.getPort() < 0 ? defaultPort : url.getPort();
 
-			SocketFactory factory = https ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
-			return factory.createSocket(host, port);
+			Socket socket = SocketFactory.getDefault().createSocket();
+			try {
+				InetSocketAddress address = resolver == null ? new InetSocketAddress(host, port)
+						: new InetSocketAddress(resolver.resolve(host), port);
+				socket.connect(address, budget.timeout(budget.getConnectTimeout(), deadline));
+				socket.setSoTimeout(budget.timeout(budget.getReadTimeout(), deadline));
+				if (https) {
+					socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+				}
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the buffered input stream of a socket that times out if a single
+		 * read takes longer than the read timeout or the deadline passes. The headers,
+		 * chunk sizes and body are all read through the one buffer, so reading them a
+		 * byte at a time never reaches the socket.
+		 *
+		 * @param socket   the connected socket
+		 * @param budget   the read timeout to apply
+		 * @param deadline the {@link System#nanoTime()} the fetch must finish by
+		 * @return the bounded input stream of the socket
+		 * @throws IOException if unable to get the input stream
+		 */
+		public static InputStream withDeadline(Socket socket, FetchBudget budget, long deadline) throws IOException {
+			return new BufferedInputStream(new DeadlineInputStream(socket, budget, deadline), BUFFER_SIZE);
 		}
 
 		/**
-		 * Writes a simple HTTP GET request to the provided socket writer.
+		 * Writes a simple HTTP GET request to the provided socket writer. The request
+		 * advertises gzip and deflate support, so the response body may need to be
+		 * decoded with {@link #getContent(InputStream, Map, FetchStatistics)}.
 		 *
 		 * @param writer a writer created from a socket connection
 		 * @param url    the url to fetch via the socket connection
 		 * @throws IOException if unable to write request to socket
 		 */
 		public static void printGetRequest(PrintWriter writer, URL url) throws IOException {
+			printGetRequest(writer, url, null, null);
+		}
+
+		/**
+		 * Writes a conditional HTTP GET request to the provided socket writer, so the
+		 * server can answer with status 304 and no body if the resource has not
+		 * changed since the response that had the given validators.
+		 *
+		 * @param writer       a writer created from a socket connection
+		 * @param url          the url to fetch via the socket connection
+		 * @param etag         the entity tag of the last response, or {@code null}
+		 * @param lastModified the last modified date of the last response, or
+		 *                     {@code null}
+		 * @throws IOException if unable to write request to socket
+		 */
+		public static void printGetRequest(PrintWriter writer, URL url, String etag, String lastModified)
+				throws IOException {
 			String host = url.getHost();
 			String resource = url.getFile().isEmpty() ? "/" : url.getFile();
 
 			writer.printf("GET %s HTTP/1.1\r\n", resource);
 			writer.printf("Host: %s\r\n", host);
+			writer.printf("Accept-Encoding: %s\r\n", ACCEPT_ENCODING);
+			if (etag != null) {
+				writer.printf("If-None-Match: %s\r\n", etag);
+			}
+			if (lastModified != null) {
+				writer.printf("If-Modified-Since: %s\r\n", lastModified);
+			}
 			writer.printf("Connection: close\r\n");
 			writer.printf("\r\n");
 			writer.flush();
@@ -423,6 +960,643 @@ public class HtmlUtils {
 		public static List<String> getContent(BufferedReader response) throws IOException {
 			return response.lines().toList();
 		}
+
+		/**
+		 * Gets the header fields directly from the input stream of a socket connection,
+		 * leaving the stream positioned at the first byte of the body. Requires that
+		 * the stream has not yet been used.
+		 *
+		 * @param response the input stream of a socket connection
+		 * @return a map of header fields to a list of header values
+		 * @throws IOException if unable to read from socket
+		 *
+		 * @see #getHeaderFields(BufferedReader)
+		 */
+		public static Map<String, List<String>> getHeaderFields(InputStream response) throws IOException {
+			Map<String, List<String>> results = new HashMap<>();
+
+			String line = readLine(response);
+			if (line == null) {
+				throw new EOFException("No response from server");
+			}
+			results.put(null, List.of(line));
+
+			while ((line = readLine(response)) != null && !line.isBlank()) {
+				String[] split = line.split(":\\s*", 2);
+				if (split.length == 2) {
+					results.putIfAbsent(split[0], new ArrayList<>());
+					results.get(split[0]).add(split[1]);
+				}
+			}
+
+			return results;
+		}
+
+		/**
+		 * Gets the decoded content from the input stream of a socket connection after
+		 * its headers have been read. Removes chunked transfer encoding and
+		 * decompresses gzip or deflate content encodings while streaming, recording
+		 * the number of bytes transferred and decoded in the statistics.
+		 *
+		 * @param response   the input stream of a socket connection
+		 * @param headers    the headers already read from that stream
+		 * @param statistics the transfer statistics to update
+		 * @return a list of lines read from the decoded body
+		 * @throws IOException if unable to read or decode the body
+		 *
+		 * @see #getHeaderFields(InputStream)
+		 */
+		public static List<String> getContent(InputStream response, Map<String, List<String>> headers,
+				FetchStatistics statistics) throws IOException {
+			InputStream body = response;
+
+			String transfer = getHeader(headers, "Transfer-Encoding");
+			if (transfer != null && transfer.toLowerCase().contains("chunked")) {
+				body = new ChunkedInputStream(body);
+			}
+
+			body = new CountingInputStream(body, statistics.compressed);
+
+			String encoding = getHeader(headers, "Content-Encoding");
+			encoding = encoding == null ? "" : encoding.strip().toLowerCase();
+			if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+				body = new GZIPInputStream(body, BUFFER_SIZE);
+				statistics.encoded.increment();
+			} else if (encoding.equals("deflate")) {
+				body = inflate(body);
+				statistics.encoded.increment();
+			}
+
+			body = new CountingInputStream(body, statistics.uncompressed);
+			statistics.pages.increment();
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8),
+					BUFFER_SIZE)) {
+				return reader.lines().collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		/**
+		 * Returns the first value of the header with the given name, ignoring the
+		 * case of the header name as HTTP/1.1 requires.
+		 *
+		 * @param headers the HTTP/1.1 headers to search
+		 * @param name    the header name
+		 * @return the first value for that header or {@code null} if not present
+		 */
+		public static String getHeader(Map<String, List<String>> headers, String name) {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+					return entry.getValue().get(0);
+				}
+			}
+			return null;
+		}
+
+		/** Buffer size used when decoding response bodies. */
+		private static final int BUFFER_SIZE = 8192;
+
+		/**
+		 * Reads a single CRLF or LF terminated line of ISO-8859-1 header text.
+		 *
+		 * @param input the stream to read from
+		 * @return the line without its terminator or {@code null} at end of stream
+		 * @throws IOException if unable to read from the stream
+		 */
+		private static String readLine(InputStream input) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			int next;
+			while ((next = input.read()) != -1 && next != '\n') {
+				line.write(next);
+			}
+			if (next == -1 && line.size() == 0) {
+				return null;
+			}
+			String text = line.toString(StandardCharsets.ISO_8859_1);
+			return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+		}
+
+		/**
+		 * Wraps a deflate encoded body. Servers disagree on whether "deflate" means a
+		 * zlib wrapped or a raw deflate stream, so the zlib header is sniffed first.
+		 *
+		 * @param body the encoded body
+		 * @return a stream of the inflated body
+		 * @throws IOException if unable to read from the body
+		 */
+		private static InputStream inflate(InputStream body) throws IOException {
+			PushbackInputStream pushback = new PushbackInputStream(body, 2);
+			int first = pushback.read();
+			int second = pushback.read();
+			if (second != -1) {
+				pushback.unread(second);
+			}
+			if (first != -1) {
+				pushback.unread(first);
+			}
+
+			boolean zlib = first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+			Inflater inflater = new Inflater(!zlib);
+
+			return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		}
+
+		/**
+		 * Socket input stream that shortens the socket timeout as the deadline of the
+		 * fetch approaches, so a server trickling bytes cannot hold a fetch past its
+		 * budget.
+		 */
+		private static class DeadlineInputStream extends FilterInputStream {
+			/** The socket being read. */
+			private final Socket socket;
+
+			/** The read and deadline timeouts. */
+			private final FetchBudget budget;
+
+			/** The {@link System#nanoTime()} the fetch must finish by. */
+			private final long deadline;
+
+			/**
+			 * Wraps the input stream of the socket.
+			 *
+			 * @param socket   the connected socket
+			 * @param budget   the read timeout to apply
+			 * @param deadline the {@link System#nanoTime()} the fetch must finish by
+			 * @throws IOException if unable to get the input stream
+			 */
+			public DeadlineInputStream(Socket socket, FetchBudget budget, long deadline) throws IOException {
+				super(socket.getInputStream());
+				this.socket = socket;
+				this.budget = budget;
+				this.deadline = deadline;
+			}
+
+			@Override
+			public int read() throws IOException {
+				socket.setSoTimeout(budget.timeout(budget.getReadTimeout(), deadline));
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				socket.setSoTimeout(budget.timeout(budget.getReadTimeout(), deadline));
+				return super.read(b, off, len);
+			}
+		}
+
+		/**
+		 * Counts the bytes read through the wrapped stream.
+		 */
+		private static class CountingInputStream extends FilterInputStream {
+			/** Where the number of bytes read is accumulated. */
+			private final LongAdder counter;
+
+			/**
+			 * Wraps a stream so every byte read is counted.
+			 *
+			 * @param in      the stream to wrap
+			 * @param counter where to accumulate the number of bytes read
+			 */
+			public CountingInputStream(InputStream in, LongAdder counter) {
+				super(in);
+				this.counter = counter;
+			}
+
+			@Override
+			public int read() throws IOException {
+				int next = super.read();
+				if (next != -1) {
+					counter.increment();
+				}
+				return next;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					counter.add(read);
+				}
+				return read;
+			}
+		}
+
+		/**
+		 * Removes HTTP/1.1 chunked transfer encoding from the wrapped stream.
+		 */
+		private static class ChunkedInputStream extends FilterInputStream {
+			/** Bytes left in the current chunk. */
+			private long remaining;
+
+			/** Whether the terminating zero length chunk has been read. */
+			private boolean finished;
+
+			/**
+			 * Wraps a stream whose content is chunked.
+			 *
+			 * @param in the chunked stream
+			 */
+			public ChunkedInputStream(InputStream in) {
+				super(in);
+				this.remaining = 0;
+				this.finished = false;
+			}
+
+			/**
+			 * Advances to the next chunk if the current one is exhausted.
+			 *
+			 * @return {@code true} if there is chunk data left to read
+			 * @throws IOException if the chunk header cannot be read
+			 */
+			private boolean nextChunk() throws IOException {
+				if (finished) {
+					return false;
+				}
+				if (remaining > 0) {
+					return true;
+				}
+
+				String line = readLine(in);
+				// skip the CRLF that ends the previous chunk's data
+				if (line != null && line.isEmpty()) {
+					line = readLine(in);
+				}
+				if (line == null) {
+					finished = true;
+					return false;
+				}
+
+				int extension = line.indexOf(';');
+				String size = (extension < 0 ? line : line.substring(0, extension)).strip();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + size);
+				}
+
+				if (remaining == 0) {
+					finished = true;
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (!nextChunk()) {
+					return -1;
+				}
+				int next = in.read();
+				if (next != -1) {
+					remaining--;
+				}
+				return next;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (!nextChunk()) {
+					return -1;
+				}
+				int read = in.read(b, off, (int) Math.min(len, remaining));
+				if (read > 0) {
+					remaining -= read;
+				}
+				return read;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return finished ? 0 : (int) Math.min(super.available(), remaining);
+			}
+		}
+	}
+
+	/**
+	 * Thread-safe accounting of the bytes transferred while fetching pages. The
+	 * compressed count is what crossed the network (after removing any chunked
+	 * transfer encoding), and the uncompressed count is the decoded body handed to
+	 * the parser.
+	 * 
+	 * @author dionfeng
+	 *
+	 */
+	public static class FetchStatistics {
+		/** Number of page bodies read. */
+		private final LongAdder pages;
+
+		/** Number of page bodies that were gzip or deflate encoded. */
+		private final LongAdder encoded;
+
+		/** Body bytes read from the network. */
+		private final LongAdder compressed;
+
+		/** Body bytes after decoding. */
+		private final LongAdder uncompressed;
+
+		/** Number of fetches abandoned because they ran out of time. */
+		private final LongAdder timeouts;
+
+		/**
+		 * Initializes all counters to zero.
+		 */
+		public FetchStatistics() {
+			this.pages = new LongAdder();
+			this.encoded = new LongAdder();
+			this.compressed = new LongAdder();
+			this.uncompressed = new LongAdder();
+			this.timeouts = new LongAdder();
+		}
+
+		/**
+		 * Returns the number of page bodies read.
+		 *
+		 * @return number of page bodies read
+		 */
+		public long getPages() {
+			return pages.sum();
+		}
+
+		/**
+		 * Returns the number of page bodies that arrived gzip or deflate encoded.
+		 *
+		 * @return number of encoded page bodies
+		 */
+		public long getEncodedPages() {
+			return encoded.sum();
+		}
+
+		/**
+		 * Returns the number of body bytes read from the network.
+		 *
+		 * @return compressed body bytes
+		 */
+		public long getCompressedBytes() {
+			return compressed.sum();
+		}
+
+		/**
+		 * Returns the number of body bytes after decoding.
+		 *
+		 * @return uncompressed body bytes
+		 */
+		public long getUncompressedBytes() {
+			return uncompressed.sum();
+		}
+
+		/**
+		 * Returns the number of fetches abandoned because they ran out of time.
+		 *
+		 * @return number of timed out fetches
+		 */
+		public long getTimeouts() {
+			return timeouts.sum();
+		}
+
+		/**
+		 * Returns how many times larger the decoded bodies were than the bytes
+		 * transferred.
+		 *
+		 * @return the compression ratio, or 1 if nothing was transferred
+		 */
+		public double getCompressionRatio() {
+			long transferred = getCompressedBytes();
+			return transferred == 0 ? 1 : (double) getUncompressedBytes() / transferred;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"pages: %d (encoded: %d), transferred: %d bytes, decoded: %d bytes, ratio: %.2f, timeouts: %d",
+					getPages(), getEncodedPages(), getCompressedBytes(), getUncompressedBytes(),
+					getCompressionRatio(), getTimeouts());
+		}
+	}
+
+	/**
+	 * Time limits for a single fetch: how long to wait for a connection, for any
+	 * single read, and for the whole fetch including redirects. Immutable, so one
+	 * budget can be shared by every crawler thread.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class FetchBudget {
+		/** The default connect timeout in milliseconds. */
+		public static final int DEFAULT_CONNECT = 5000;
+
+		/** The default read timeout in milliseconds. */
+		public static final int DEFAULT_READ = 10000;
+
+		/** The default total time for a fetch in milliseconds. */
+		public static final int DEFAULT_DEADLINE = 30000;
+
+		/** Budget with the default limits. */
+		public static final FetchBudget DEFAULT = new FetchBudget(DEFAULT_CONNECT, DEFAULT_READ, DEFAULT_DEADLINE);
+
+		/** Connect timeout in milliseconds. */
+		private final int connectTimeout;
+
+		/** Read timeout in milliseconds. */
+		private final int readTimeout;
+
+		/** Total time for a fetch in milliseconds. */
+		private final int deadline;
+
+		/**
+		 * Initializes a budget. Non-positive limits fall back to the defaults.
+		 *
+		 * @param connectTimeout milliseconds to wait for a connection
+		 * @param readTimeout    milliseconds to wait for any single read
+		 * @param deadline       milliseconds allowed for the whole fetch
+		 */
+		public FetchBudget(int connectTimeout, int readTimeout, int deadline) {
+			this.connectTimeout = connectTimeout > 0 ? connectTimeout : DEFAULT_CONNECT;
+			this.readTimeout = readTimeout > 0 ? readTimeout : DEFAULT_READ;
+			this.deadline = deadline > 0 ? deadline : DEFAULT_DEADLINE;
+		}
+
+		/**
+		 * Returns the connect timeout.
+		 *
+		 * @return milliseconds to wait for a connection
+		 */
+		public int getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		/**
+		 * Returns the read timeout.
+		 *
+		 * @return milliseconds to wait for any single read
+		 */
+		public int getReadTimeout() {
+			return readTimeout;
+		}
+
+		/**
+		 * Returns the total time allowed for a fetch.
+		 *
+		 * @return milliseconds allowed for the whole fetch
+		 */
+		public int getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Returns the {@link System#nanoTime()} a fetch starting now must finish by.
+		 *
+		 * @return the deadline of a new fetch
+		 */
+		public long deadline() {
+			return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+		}
+
+		/**
+		 * Returns the timeout to use for the next operation, which is the given limit
+		 * or the time left before the deadline, whichever is shorter.
+		 *
+		 * @param limit    the limit of the operation in milliseconds
+		 * @param deadline the {@link System#nanoTime()} the fetch must finish by
+		 * @return the timeout in milliseconds, at least 1
+		 * @throws SocketTimeoutException if the deadline has passed
+		 */
+		public int timeout(int limit, long deadline) throws SocketTimeoutException {
+			long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (left <= 0) {
+				throw new SocketTimeoutException("Fetch deadline exceeded");
+			}
+			return (int) Math.max(1, Math.min(limit, left));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("connect: %d ms, read: %d ms, deadline: %d ms", connectTimeout, readTimeout, deadline);
+		}
+	}
+
+	/**
+	 * The outcome of a single fetch: the final url after redirects, the status
+	 * code, the html if there was any, and the validators needed to ask for the
+	 * page again only if it changed.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class FetchResult {
+		/** The url the response came from. */
+		private final URL url;
+
+		/** The HTTP status code. */
+		private final int status;
+
+		/** The html, or {@code null} if the response was not html. */
+		private final String html;
+
+		/** The entity tag of the response, or {@code null}. */
+		private final String etag;
+
+		/** The last modified date of the response, or {@code null}. */
+		private final String lastModified;
+
+		/**
+		 * Initializes a fetch result.
+		 *
+		 * @param url          the url the response came from
+		 * @param status       the HTTP status code
+		 * @param html         the html, or {@code null}
+		 * @param etag         the entity tag, or {@code null}
+		 * @param lastModified the last modified date, or {@code null}
+		 */
+		public FetchResult(URL url, int status, String html, String etag, String lastModified) {
+			this.url = url;
+			this.status = status;
+			this.html = html;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns the url the response came from.
+		 *
+		 * @return the final url after redirects
+		 */
+		public URL getUrl() {
+			return url;
+		}
+
+		/**
+		 * Returns the HTTP status code.
+		 *
+		 * @return the status code
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the html of the response.
+		 *
+		 * @return the html, or {@code null} if the response was not html
+		 */
+		public String getHtml() {
+			return html;
+		}
+
+		/**
+		 * Returns the entity tag of the response.
+		 *
+		 * @return the entity tag, or {@code null}
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Returns the last modified date of the response.
+		 *
+		 * @return the last modified date, or {@code null}
+		 */
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns whether the server said the page did not change.
+		 *
+		 * @return {@code true} if the status is 304
+		 */
+		public boolean isNotModified() {
+			return status == 304;
+		}
+
+		/**
+		 * Returns whether the server said the page no longer exists.
+		 *
+		 * @return {@code true} if the status is 404 or 410
+		 */
+		public boolean isGone() {
+			return status == 404 || status == 410;
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + url;
+		}
 	}
 
 	/**
@@ -430,6 +1604,9 @@ public class HtmlUtils {
 	 *
 	 */
 	public static class LinkParser {
+		/** Regular expression that matches the href attribute of anchor tags. */
+		private static final Pattern HREF_REGEX = Pattern.compile("(?i)(<a[^>]+href\\s*=\\s*\")([^\"]+)(\")");
+
 		/**
 		 * Returns a list of all the valid HTTP(S) links found in the href attribute of
 		 * the anchor tags in the provided HTML. The links will be converted to absolute
@@ -447,9 +1624,7 @@ public class HtmlUtils {
 		 */
 		public static ArrayList<URL> getValidLinks(URL base, String html) {
 			ArrayList<URL> links = new ArrayList<URL>();
-			String regex = "(?i)(<a[^>]+href\\s*=\\s*\")([^\"]+)(\")";
-			Pattern pattern = Pattern.compile(regex);
-			Matcher matcher = pattern.matcher(html);
+			Matcher matcher = HREF_REGEX.matcher(html);
 
 			while (matcher.find()) {
 				try {
@@ -488,5 +1663,199 @@ public class HtmlUtils {
 			return url.getProtocol().matches("(?i)https?");
 		}
 	}
-	
+
+	/**
+	 * Converts the links found on one page into absolute, normalized HTTP(S) urls
+	 * without creating a {@link URL} and {@link URI} per link. The scheme,
+	 * authority, path, and directory of the page are split apart once up front, so
+	 * resolving a relative link is only string concatenation and dot-segment
+	 * removal. The result matches {@link LinkParser#normalize(URL)} applied to
+	 * {@code new URL(base, link)}: the fragment is removed and characters that are
+	 * illegal in a url are percent-encoded. Unlike that method, existing escapes
+	 * are not encoded a second time and "." and ".." segments are always removed.
+	 * 
+	 * @author dionfeng
+	 *
+	 */
+	public static class LinkResolver {
+		/** Hexadecimal digits used for percent-encoding. */
+		private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+		/** Lowercase scheme of the page url. */
+		private final String scheme;
+
+		/** Authority (user info, host, and port) of the page url. */
+		private final String authority;
+
+		/** Path of the page url. */
+		private final String path;
+
+		/** Path of the page url up to and including its last slash. */
+		private final String directory;
+
+		/** Query of the page url, or {@code null} if there is none. */
+		private final String query;
+
+		/**
+		 * Precomputes the parts of the page url that links are resolved against.
+		 *
+		 * @param base the url of the page the links were found on
+		 */
+		public LinkResolver(URL base) {
+			this.scheme = base.getProtocol().toLowerCase();
+			this.authority = base.getAuthority() == null ? "" : base.getAuthority();
+			this.path = base.getPath();
+			this.directory = path.isEmpty() ? "/" : path.substring(0, path.lastIndexOf('/') + 1);
+			this.query = base.getQuery();
+		}
+
+		/**
+		 * Resolves a link against the page url.
+		 *
+		 * @param link the link as written in the href attribute
+		 * @return the absolute, normalized url, or {@code null} if the link does not
+		 *         use the HTTP(S) protocol or cannot be parsed
+		 */
+		public String resolve(String link) {
+			link = link.strip();
+
+			int fragment = link.indexOf('#');
+			if (fragment >= 0) {
+				link = link.substring(0, fragment);
+			}
+
+			String linkScheme = scheme;
+			int colon = schemeEnd(link);
+			if (colon > 0) {
+				linkScheme = link.substring(0, colon).toLowerCase();
+				if (!linkScheme.equals("http") && !linkScheme.equals("https")) {
+					return null;
+				}
+				link = link.substring(colon + 1);
+				if (!linkScheme.equals(scheme) && !link.startsWith("//")) {
+					return null;
+				}
+			}
+
+			String linkAuthority = authority;
+			boolean sameAuthority = true;
+			if (link.startsWith("//")) {
+				int end = 2;
+				while (end < link.length() && link.charAt(end) != '/' && link.charAt(end) != '?') {
+					end++;
+				}
+				linkAuthority = link.substring(2, end);
+				sameAuthority = false;
+				link = link.substring(end);
+				if (linkAuthority.isEmpty()) {
+					return null;
+				}
+			} else if (!linkScheme.equals(scheme)) {
+				return null;
+			}
+
+			int question = link.indexOf('?');
+			String linkPath = question < 0 ? link : link.substring(0, question);
+			String linkQuery = question < 0 ? null : link.substring(question + 1);
+
+			if (linkPath.isEmpty()) {
+				// like URL, a query-only link replaces the page name and an empty link is
+				// the page itself
+				if (sameAuthority) {
+					linkPath = question < 0 ? path : directory;
+					if (question < 0) {
+						linkQuery = query;
+					}
+				}
+			} else if (linkPath.charAt(0) != '/') {
+				linkPath = sameAuthority ? directory + linkPath : "/" + linkPath;
+			}
+
+			StringBuilder url = new StringBuilder(linkScheme.length() + linkAuthority.length() + link.length() + 16);
+			url.append(linkScheme).append("://").append(linkAuthority);
+			appendEncoded(removeDotSegments(linkPath), url);
+			if (linkQuery != null) {
+				url.append('?');
+				appendEncoded(linkQuery, url);
+			}
+			return url.toString();
+		}
+
+		/**
+		 * Finds the colon ending the scheme of a link.
+		 *
+		 * @param link the link to check
+		 * @return the index of the colon, or -1 if the link has no scheme
+		 */
+		private static int schemeEnd(String link) {
+			for (int i = 0; i < link.length(); i++) {
+				char c = link.charAt(i);
+				if (c == ':') {
+					return i;
+				}
+				boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+						|| (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+				if (!valid) {
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Removes the "." and ".." segments of a path.
+		 *
+		 * @param path the path to clean
+		 * @return the path without dot segments
+		 */
+		private static String removeDotSegments(String path) {
+			if (!path.contains("./") && !path.endsWith("/.") && !path.endsWith("/..")) {
+				return path;
+			}
+
+			ArrayList<String> segments = new ArrayList<>();
+			String[] split = path.split("/", -1);
+			for (int i = 1; i < split.length; i++) {
+				String segment = split[i];
+				boolean last = i == split.length - 1;
+				if (segment.equals(".")) {
+					if (last) {
+						segments.add("");
+					}
+				} else if (segment.equals("..")) {
+					if (!segments.isEmpty()) {
+						segments.remove(segments.size() - 1);
+					}
+					if (last) {
+						segments.add("");
+					}
+				} else {
+					segments.add(segment);
+				}
+			}
+			return "/" + String.join("/", segments);
+		}
+
+		/**
+		 * Appends the text, percent-encoding the characters that are not allowed in
+		 * the path or query of a url. Existing escapes and non-ASCII characters are
+		 * kept as they are, like the multi-argument {@link URI} constructors do.
+		 *
+		 * @param text the path or query to append
+		 * @param url  where to append the encoded text
+		 */
+		private static void appendEncoded(String text, StringBuilder url) {
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				boolean escape = c == '%' && i + 2 < text.length() && Character.digit(text.charAt(i + 1), 16) >= 0
+						&& Character.digit(text.charAt(i + 2), 16) >= 0;
+				if (c <= ' ' || c == 0x7F || c == '"' || c == '<' || c == '>' || c == '\\' || c == '^' || c == '`'
+						|| c == '{' || c == '|' || c == '}' || (c == '%' && !escape)) {
+					url.append('%').append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+				} else {
+					url.append(c);
+				}
+			}
+		}
+	}
 }
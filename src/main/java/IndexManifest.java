@@ -0,0 +1,291 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Thread-safe record of every text file in an index: its size, modification
+ * time and a checksum of its contents. Kept next to a snapshot of the index, it
+ * lets the next build re-index only the files that are new or changed, and
+ * remove the postings of files that changed or were deleted, so a rebuild takes
+ * time in proportion to what changed.
+ *
+ * @author dionfeng
+ *
+ */
+public class IndexManifest {
+	/** Marks the start of a manifest file. */
+	private static final int MAGIC = 0x4d414e49;
+
+	/** Version of the manifest format. */
+	private static final int VERSION = 1;
+
+	/** Name of the index snapshot in the state directory. */
+	public static final String SNAPSHOT = "index.snapshot";
+
+	/** Name of the manifest in the state directory. */
+	public static final String MANIFEST = "manifest";
+
+	/** Files by location. */
+	private final ConcurrentHashMap<String, FileEntry> files;
+
+	/** Locations seen by the current build. */
+	private final Set<String> seen;
+
+	/** Number of files the current build found unchanged. */
+	private int unchanged;
+
+	/**
+	 * Initializes an empty manifest.
+	 */
+	public IndexManifest() {
+		this.files = new ConcurrentHashMap<>();
+		this.seen = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Loads the index snapshot and manifest kept in the directory, if both exist.
+	 *
+	 * @param directory the state directory
+	 * @param index     index to add the snapshot to
+	 * @return the manifest, empty if the directory holds no state
+	 * @throws IOException if unable to read the state
+	 */
+	public static IndexManifest load(Path directory, InvertedIndex index) throws IOException {
+		IndexManifest manifest = new IndexManifest();
+		Path snapshot = directory.resolve(SNAPSHOT);
+		Path path = directory.resolve(MANIFEST);
+
+		if (Files.isRegularFile(snapshot) && Files.isRegularFile(path)) {
+			index.readSnapshot(snapshot);
+			manifest.read(path);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Saves the index snapshot and this manifest in the directory. The snapshot is
+	 * written first, so a crash in between leaves an older manifest, which only
+	 * makes the next build re-index more files.
+	 *
+	 * @param directory the state directory
+	 * @param index     index to snapshot
+	 * @throws IOException if unable to write the state
+	 */
+	public void save(Path directory, InvertedIndex index) throws IOException {
+		Files.createDirectories(directory);
+		index.writeSnapshot(directory.resolve(SNAPSHOT));
+		write(directory.resolve(MANIFEST));
+	}
+
+	/**
+	 * Decides whether a file found by the current build must be indexed. A file
+	 * with the recorded size and modification time is skipped without reading it.
+	 * Otherwise its checksum decides; if the contents changed, the old postings of
+	 * the file are removed from the index and the new state is recorded. Call
+	 * {@link #failed(Path)} if the file then cannot be indexed.
+	 *
+	 * @param path  the text file
+	 * @param index the index being built
+	 * @return {@code true} if the file is new or changed and must be indexed
+	 * @throws IOException if unable to read the file
+	 */
+	public boolean prepare(Path path, InvertedIndex index) throws IOException {
+		String location = path.toString();
+		seen.add(location);
+
+		long size = Files.size(path);
+		long modified = Files.getLastModifiedTime(path).toMillis();
+		FileEntry previous = files.get(location);
+		if (previous != null && previous.size == size && previous.modified == modified) {
+			countUnchanged();
+			return false;
+		}
+
+		long checksum = checksum(path);
+		files.put(location, new FileEntry(size, modified, checksum));
+		if (previous != null && previous.size == size && previous.checksum == checksum) {
+			countUnchanged();
+			return false;
+		}
+
+		if (previous != null) {
+			index.removeLocations(List.of(location));
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a file could not be indexed, so the next build indexes it again
+	 * and first removes anything it left in the index.
+	 *
+	 * @param path the text file
+	 */
+	public void failed(Path path) {
+		files.put(path.toString(), new FileEntry(-1, -1, 0));
+	}
+
+	/**
+	 * Removes the files under the root that the current build did not find, from
+	 * this manifest and from the index, and starts a new build.
+	 *
+	 * @param root  the file or directory that was built
+	 * @param index the index being built
+	 */
+	public void removeDeleted(Path root, InvertedIndex index) {
+		// locations are normalized, so a root such as ./text must be too
+		Path normalized = root.normalize();
+		List<String> deleted = new ArrayList<>();
+		for (String location : files.keySet()) {
+			if (!seen.contains(location) && Path.of(location).startsWith(normalized)) {
+				deleted.add(location);
+			}
+		}
+
+		if (!deleted.isEmpty()) {
+			index.removeLocations(deleted);
+			for (String location : deleted) {
+				files.remove(location);
+			}
+		}
+		seen.clear();
+	}
+
+	/**
+	 * Counts a file found unchanged.
+	 */
+	private synchronized void countUnchanged() {
+		unchanged++;
+	}
+
+	/**
+	 * Returns the number of files the builds found unchanged.
+	 *
+	 * @return number of files skipped
+	 */
+	public synchronized int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * Returns the number of files in the manifest.
+	 *
+	 * @return number of files
+	 */
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * Computes the CRC-32C checksum of the contents of the file.
+	 *
+	 * @param path the file
+	 * @return the checksum
+	 * @throws IOException if unable to read the file
+	 */
+	public static long checksum(Path path) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the manifest to the path, through a temporary file so a crash never
+	 * leaves a partial file behind.
+	 *
+	 * @param path location to store the manifest
+	 * @throws IOException if unable to write
+	 */
+	public void write(Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			List<Map.Entry<String, FileEntry>> entries = new ArrayList<>(files.entrySet());
+			out.writeInt(entries.size());
+			for (var entry : entries) {
+				FileEntry file = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(file.size);
+				out.writeLong(file.modified);
+				out.writeLong(file.checksum);
+			}
+		}
+
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the files recorded at the path to this manifest.
+	 *
+	 * @param path location of the manifest
+	 * @throws IOException if unable to read or the file is not a manifest
+	 */
+	public void read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index manifest: " + path);
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String location = in.readUTF();
+				files.put(location, new FileEntry(in.readLong(), in.readLong(), in.readLong()));
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return files.size() + " files, " + getUnchanged() + " unchanged";
+	}
+
+	/**
+	 * What is known about a file from the last time it was indexed. Immutable.
+	 */
+	private static class FileEntry {
+		/** Size of the file in bytes. */
+		private final long size;
+
+		/** Modification time of the file in milliseconds. */
+		private final long modified;
+
+		/** Checksum of the contents of the file. */
+		private final long checksum;
+
+		/**
+		 * Initializes an entry.
+		 *
+		 * @param size     size of the file in bytes
+		 * @param modified modification time in milliseconds
+		 * @param checksum checksum of the contents
+		 */
+		public FileEntry(long size, long modified, long checksum) {
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+	}
+}
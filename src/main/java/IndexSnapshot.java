@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Class to write and read a compact binary copy of an inverted index, used to
+ * checkpoint an index to disk and restore it without rebuilding.
+ *
+ * <p>
+ * The format is a header followed by the words in sorted order. Each word is
+ * followed by its locations, and each location by its positions as deltas from
+ * the previous position. The word counts of every location follow the words.
+ *
+ * @author dionfeng
+ *
+ */
+public class IndexSnapshot {
+	/** Marks the start of a snapshot file. */
+	static final int MAGIC = 0x53454958;
+
+	/** Version of the snapshot format. */
+	static final int VERSION = 1;
+
+	/**
+	 * Write the index to the path. The snapshot is written to a temporary file
+	 * first and then moved into place, so a crash never leaves a partial snapshot
+	 * behind.
+	 *
+	 * @param index     word to location to positions map
+	 * @param wordCount location to word count map
+	 * @param path      location to store the snapshot
+	 * @throws IOException if unable to write
+	 */
+	public static void write(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index, Map<String, Integer> wordCount,
+			Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(index.size());
+			for (var word : index.entrySet()) {
+				out.writeUTF(word.getKey());
+				out.writeInt(word.getValue().size());
+				for (var location : word.getValue().entrySet()) {
+					out.writeUTF(location.getKey());
+					writePositions(location.getValue(), out);
+				}
+			}
+
+			out.writeInt(wordCount.size());
+			for (var count : wordCount.entrySet()) {
+				out.writeUTF(count.getKey());
+				out.writeInt(count.getValue());
+			}
+		}
+
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a snapshot into the maps of an index. Postings already in the maps are
+	 * kept and merged with the ones read.
+	 *
+	 * @param path      location of the snapshot
+	 * @param index     word to location to positions map to add to
+	 * @param wordCount location to word count map to add to
+	 * @throws IOException if unable to read or the file is not a snapshot
+	 */
+	public static void read(Path path, TreeMap<String, TreeMap<String, TreeSet<Integer>>> index,
+			Map<String, Integer> wordCount) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index snapshot: " + path);
+			}
+
+			int words = in.readInt();
+			for (int i = 0; i < words; i++) {
+				TreeMap<String, TreeSet<Integer>> locations = index.computeIfAbsent(in.readUTF(), k -> new TreeMap<>());
+				int count = in.readInt();
+				for (int j = 0; j < count; j++) {
+					readPositions(in, locations.computeIfAbsent(in.readUTF(), k -> new TreeSet<>()));
+				}
+			}
+
+			int counts = in.readInt();
+			for (int i = 0; i < counts; i++) {
+				wordCount.merge(in.readUTF(), in.readInt(), Math::max);
+			}
+		}
+	}
+
+	/**
+	 * Write a sorted set of positions as deltas.
+	 *
+	 * @param positions the positions to write
+	 * @param out       the stream to write to
+	 * @throws IOException if unable to write
+	 */
+	public static void writePositions(TreeSet<Integer> positions, DataOutputStream out) throws IOException {
+		out.writeInt(positions.size());
+		int previous = 0;
+		for (int position : positions) {
+			writeVarInt(position - previous, out);
+			previous = position;
+		}
+	}
+
+	/**
+	 * Read positions written by {@link #writePositions(TreeSet, DataOutputStream)}.
+	 *
+	 * @param in        the stream to read from
+	 * @param positions the set to add the positions to
+	 * @throws IOException if unable to read
+	 */
+	public static void readPositions(DataInputStream in, TreeSet<Integer> positions) throws IOException {
+		int count = in.readInt();
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			position += readVarInt(in);
+			positions.add(position);
+		}
+	}
+
+	/**
+	 * Write a non-negative int using 7 bits per byte, so small deltas take one
+	 * byte instead of four.
+	 *
+	 * @param value the value to write
+	 * @param out   the stream to write to
+	 * @throws IOException if unable to write
+	 */
+	private static void writeVarInt(int value, DataOutputStream out) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Read an int written by {@link #writeVarInt(int, DataOutputStream)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the value read
+	 * @throws IOException if unable to read
+	 */
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int next = in.readUnsignedByte();
+			value |= (next & 0x7F) << shift;
+			if ((next & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed snapshot position");
+	}
+}
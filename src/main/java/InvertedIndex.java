@@ -107,6 +107,132 @@ public class InvertedIndex {
 
 	}
 
+	/**
+	 * add all the data from other Inverted Index to the @this index, moving every
+	 * position of the other index forward by the offset. Used to merge the index
+	 * of a later part of a file, whose positions start again from 1.
+	 *
+	 * @param other  other locally declared Inverted index
+	 * @param offset number of words before the positions of the other index
+	 */
+	public void addAll(InvertedIndex other, int offset) {
+		if (offset == 0) {
+			addAll(other);
+			return;
+		}
+
+		copy(other, offset);
+	}
+
+	/**
+	 * add all the data from other Inverted Index to the @this index like
+	 * {@link #addAll(InvertedIndex)}, but copying every position instead of
+	 * sharing the sets of the other index, so later changes to either index never
+	 * show up in the other
+	 *
+	 * @param other other Inverted index, left unchanged
+	 */
+	public void copyAll(InvertedIndex other) {
+		copy(other, 0);
+	}
+
+	/**
+	 * Copy every position of the other index into this one, moved forward by the
+	 * offset
+	 *
+	 * @param other  other Inverted index
+	 * @param offset number of words before the positions of the other index
+	 */
+	private void copy(InvertedIndex other, int offset) {
+		for (var entry : other.wordIndexMap.entrySet()) {
+			TreeMap<String, TreeSet<Integer>> locations = wordIndexMap.computeIfAbsent(entry.getKey(),
+					k -> new TreeMap<>());
+			for (var location : entry.getValue().entrySet()) {
+				TreeSet<Integer> positions = locations.computeIfAbsent(location.getKey(), k -> new TreeSet<>());
+				for (int position : location.getValue()) {
+					positions.add(position + offset);
+				}
+			}
+		}
+
+		for (var count : other.wordCount.entrySet()) {
+			wordCount.merge(count.getKey(), count.getValue() + offset, Math::max);
+		}
+	}
+
+	/**
+	 * Remove every word position of the given locations from the index, dropping
+	 * words left without any location. Scans the words once however many
+	 * locations are removed.
+	 *
+	 * @param locations locations to remove
+	 */
+	public void removeLocations(Collection<String> locations) {
+		if (locations.isEmpty()) {
+			return;
+		}
+
+		var words = wordIndexMap.values().iterator();
+		while (words.hasNext()) {
+			TreeMap<String, TreeSet<Integer>> locationMap = words.next();
+			for (String location : locations) {
+				locationMap.remove(location);
+			}
+			if (locationMap.isEmpty()) {
+				words.remove();
+			}
+		}
+
+		for (String location : locations) {
+			wordCount.remove(location);
+		}
+	}
+
+	/**
+	 * Remove every word and location from the index
+	 */
+	public void clear() {
+		wordIndexMap.clear();
+		wordCount.clear();
+	}
+
+	/**
+	 * Remove every location inside the directory, such as the text files of a
+	 * directory that was deleted
+	 *
+	 * @param directory the directory
+	 */
+	public void removeDirectory(Path directory) {
+		List<String> locations = new ArrayList<>();
+		for (String location : wordCount.keySet()) {
+			if (Path.of(location).startsWith(directory)) {
+				locations.add(location);
+			}
+		}
+		removeLocations(locations);
+	}
+
+	/**
+	 * Replace everything indexed at the location with the contents of another
+	 * index, which should only contain that location
+	 *
+	 * @param location location to replace
+	 * @param other    locally built index of the new contents of the location
+	 */
+	public void replaceLocation(String location, InvertedIndex other) {
+		removeLocations(List.of(location));
+		addAll(other);
+	}
+
+	/**
+	 * Function that get every location with words in the index
+	 *
+	 * @return an unmodified view of the locations in the index
+	 */
+	public Collection<String> getCountLocations() {
+		return Collections.unmodifiableCollection(wordCount.keySet());
+	}
+
 	/**
 	 * Function that get all the words in the map
 	 *
@@ -149,6 +275,39 @@ public class InvertedIndex {
 		JsonWriter.writeInvertedIndex(wordIndexMap, path);
 	}
 
+	/**
+	 * Write a binary snapshot of the Inverted Index to the given path
+	 *
+	 * @param path location of the snapshot to store
+	 * @throws IOException if an IO error occurs
+	 */
+	public void writeSnapshot(Path path) throws IOException {
+		IndexSnapshot.write(wordIndexMap, wordCount, path);
+	}
+
+	/**
+	 * Write a binary snapshot of the Inverted Index to the given path and empty
+	 * the index, freeing its memory until the snapshot is read back
+	 *
+	 * @param path location of the snapshot to store
+	 * @throws IOException if an IO error occurs, leaving the index unchanged
+	 */
+	public void spill(Path path) throws IOException {
+		writeSnapshot(path);
+		wordIndexMap.clear();
+		wordCount.clear();
+	}
+
+	/**
+	 * Add all the words, locations, and positions of a snapshot to this index
+	 *
+	 * @param path location of the snapshot to read
+	 * @throws IOException if an IO error occurs
+	 */
+	public void readSnapshot(Path path) throws IOException {
+		IndexSnapshot.read(path, wordIndexMap, wordCount);
+	}
+
 	/**
 	 * Check if the word is in the map
 	 *
@@ -278,6 +437,20 @@ public class InvertedIndex {
 			this.where = location;
 		}
 
+		/**
+		 * Constructor for a result whose count was added up elsewhere, such as
+		 * across the segments of an index
+		 *
+		 * @param location file location
+		 * @param count    number of matching word positions
+		 * @param total    number of words in the file
+		 */
+		public SearchQuery(String location, int count, int total) {
+			this.where = location;
+			this.count = count;
+			this.score = (double) count / total;
+		}
+
 		/**
 		 * getter for file location
 		 *
@@ -387,6 +560,45 @@ public class InvertedIndex {
 		return result;
 	}
 
+	/**
+	 * Add up the number of word positions of each location that match the query
+	 * words, counting them the same way the searches do, so an index searched in
+	 * parts can combine the counts of every part
+	 *
+	 * @param wordQuery   set of query words
+	 * @param exactSearch whether words must match exactly instead of by prefix
+	 * @param counts      location to matching positions map to add to
+	 */
+	public void countMatches(Set<String> wordQuery, boolean exactSearch, Map<String, Integer> counts) {
+		for (String word : wordQuery) {
+			if (exactSearch) {
+				TreeMap<String, TreeSet<Integer>> locations = wordIndexMap.get(word);
+				if (locations != null) {
+					countPositions(locations, counts);
+				}
+			} else {
+				for (var matches : wordIndexMap.tailMap(word).entrySet()) {
+					if (!matches.getKey().startsWith(word)) {
+						break;
+					}
+					countPositions(matches.getValue(), counts);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the number of positions of each location to the counts
+	 *
+	 * @param locations location to positions map of a word
+	 * @param counts    location to matching positions map to add to
+	 */
+	private static void countPositions(TreeMap<String, TreeSet<Integer>> locations, Map<String, Integer> counts) {
+		for (var location : locations.entrySet()) {
+			counts.merge(location.getKey(), location.getValue().size(), Integer::sum);
+		}
+	}
+
 	/**
 	 * construct SearchQuery objects into the list and update the count and the
 	 * score
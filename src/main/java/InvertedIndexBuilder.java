@@ -1,11 +1,11 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 import opennlp.tools.stemmer.Stemmer;
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * Builder class that checks file sources whether are valid and buildable
@@ -18,6 +18,18 @@ public class InvertedIndexBuilder implements ParseUtils {
 	 */
 	private final InvertedIndex index;
 
+	/**
+	 * Manifest of the files already in the index, or {@code null} to index every
+	 * file found
+	 */
+	private IndexManifest manifest;
+
+	/**
+	 * Memory governor that spills the index to disk, or {@code null} to keep the
+	 * whole index in memory
+	 */
+	private MemoryGovernor governor;
+
 	/**
 	 * Default constructor
 	 *
@@ -27,6 +39,76 @@ public class InvertedIndexBuilder implements ParseUtils {
 		this.index = index;
 	}
 
+	/**
+	 * Set the manifest of the files already in the index, so a build only indexes
+	 * the files that are new or changed and removes the files that were deleted
+	 *
+	 * @param manifest manifest loaded with the index, or {@code null} to index
+	 *                 every file
+	 */
+	public void setManifest(IndexManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Set the memory governor that spills the index to segment files once it holds
+	 * too many word positions, for corpora larger than the heap. The segments are
+	 * only merged when the output is written, so the index cannot be searched
+	 * after the build.
+	 *
+	 * @param governor memory governor to use, or {@code null} to keep the whole
+	 *                 index in memory
+	 */
+	public void setMemoryGovernor(MemoryGovernor governor) {
+		this.governor = governor;
+	}
+
+	/**
+	 * Record word positions added to the index, spilling it if the memory governor
+	 * says so
+	 *
+	 * @param words number of word positions just added
+	 */
+	protected void added(int words) {
+		if (governor != null) {
+			governor.added(index, words);
+		}
+	}
+
+	/**
+	 * Check the file against the manifest, removing its old postings if it changed
+	 *
+	 * @param path location of the file found
+	 * @return whether the file must be indexed
+	 * @throws IOException if unable to read the file
+	 */
+	protected boolean needsIndexing(Path path) throws IOException {
+		return manifest == null || manifest.prepare(path, index);
+	}
+
+	/**
+	 * Record in the manifest that a file could not be indexed, so the next build
+	 * tries it again
+	 *
+	 * @param path location of the file
+	 */
+	protected void failed(Path path) {
+		if (manifest != null) {
+			manifest.failed(path);
+		}
+	}
+
+	/**
+	 * Remove the files the build did not find from the manifest and the index
+	 *
+	 * @param path location of the file or directory built
+	 */
+	protected void removeDeleted(Path path) {
+		if (manifest != null) {
+			manifest.removeDeleted(path, index);
+		}
+	}
+
 	/**
 	 * Check whether the path is a directory and build the path into the indexMap
 	 *
@@ -41,6 +123,54 @@ public class InvertedIndexBuilder implements ParseUtils {
 				processFile(filePath);
 			}
 		}
+		removeDeleted(path);
+	}
+
+	/**
+	 * Rebuild the index from the pages kept in a content store, without fetching
+	 * them again
+	 *
+	 * @param store content store written by a crawl
+	 * @throws IOException if unable to read the store
+	 */
+	public void build(ContentStore store) throws IOException {
+		for (String url : store.getUrls()) {
+			processPage(url, store);
+		}
+	}
+
+	/**
+	 * Add the words of a stored page to the InvertedIndex map
+	 *
+	 * @param url   location of the page
+	 * @param store content store holding the page
+	 * @throws IOException if unable to read the page
+	 */
+	public void processPage(String url, ContentStore store) throws IOException {
+		processPage(url, store.get(url), this.index);
+	}
+
+	/**
+	 * Clean, split and stem the text of a page and add the word, location, and
+	 * index to the InvertedIndex map, the same way the crawler indexes it
+	 *
+	 * @param url   location of the page
+	 * @param text  cleaned text of the page, or {@code null} if it was removed
+	 * @param index index map
+	 */
+	public static void processPage(String url, String text, InvertedIndex index) {
+		if (text == null) {
+			return;
+		}
+
+		Stemmer stemmer = StemCache.getDefault();
+		List<String> words = new ArrayList<>();
+		new ParseUtils.Tokenizer().tokenize(text, words);
+
+		int indicies = 0;
+		for (String word : words) {
+			index.add(stemmer.stem(word).toString(), url, ++indicies);
+		}
 	}
 
 	/**
@@ -50,31 +180,83 @@ public class InvertedIndexBuilder implements ParseUtils {
 	 * @throws IOException IO exception to catch
 	 */
 	public void processFile(Path path) throws IOException {
-		processFile(path, this.index);
+		if (needsIndexing(path)) {
+			try {
+				added(processFile(path, this.index));
+			} catch (IOException e) {
+				failed(path);
+				throw e;
+			}
+		}
 	}
 
 	/**
-	 * Read file line by line and add the word, location, and index to the
-	 * InvertedIndex map
+	 * Tokenize the memory-mapped bytes of the file and add the word, location,
+	 * and index to the InvertedIndex map
 	 *
 	 * @param path  location of the file to be stemmed and added to the map
 	 * @param index index map
-	 * @throws IOException if unable to read
+	 * @return number of words added
+	 * @throws IOException if unable to read or the file is not valid UTF-8
 	 */
-	public static void processFile(Path path, InvertedIndex index) throws IOException {
-		int indicies = 0;
-		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
-			String line = null;
-			String location = path.toString();
-			Stemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
-			while ((line = reader.readLine()) != null) {
-				for (String word : ParseUtils.parse(line)) {
-					if (!word.isEmpty()) {
-						index.add(stemmer.stem(word).toString(), location, ++indicies);
-					}
-				}
+	public static int processFile(Path path, InvertedIndex index) throws IOException {
+		return processFile(path, 0, Files.size(path), index);
+	}
+
+	/**
+	 * Tokenize part of the file and add the word, location, and index to the
+	 * InvertedIndex map, numbering the positions from 1 at the start of the part
+	 *
+	 * @param path  location of the file to be stemmed and added to the map
+	 * @param start offset of the part, 0 or right after an ASCII space
+	 * @param end   offset after the part, right after an ASCII space or the file
+	 *              size
+	 * @param index index map
+	 * @return number of words added
+	 * @throws IOException if unable to read or the file is not valid UTF-8
+	 *
+	 * @see ParseUtils.Tokenizer#tokenize(Path, long, long, java.util.function.Consumer)
+	 */
+	public static int processFile(Path path, long start, long end, InvertedIndex index) throws IOException {
+		PositionCounter counter = new PositionCounter(path.toString(), index);
+		new ParseUtils.Tokenizer().tokenize(path, start, end, counter);
+		return counter.indicies;
+	}
+
+	/**
+	 * Stems each word it receives and adds it to the index at the next position
+	 */
+	private static class PositionCounter implements Consumer<String> {
+		/** Location of the words. */
+		private final String location;
+
+		/** Index to add the words to. */
+		private final InvertedIndex index;
+
+		/** Stemmer of the words. */
+		private final Stemmer stemmer;
+
+		/** Position of the last word added. */
+		private int indicies;
+
+		/**
+		 * Initializes a counter at position 0.
+		 *
+		 * @param location location of the words
+		 * @param index    index to add the words to
+		 */
+		public PositionCounter(String location, InvertedIndex index) {
+			this.location = location;
+			this.index = index;
+			this.stemmer = StemCache.getDefault();
+			this.indicies = 0;
+		}
+
+		@Override
+		public void accept(String word) {
+			if (!word.isEmpty()) {
+				index.add(stemmer.stem(word).toString(), location, ++indicies);
 			}
 		}
 	}
-
 }
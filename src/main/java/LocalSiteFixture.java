@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Generated web site served by an embedded Jetty server on a free localhost
+ * port, so the crawler can be benchmarked without touching the internet. Pages
+ * are named {@code /page0.html} to {@code /pageN.html} and generated from a
+ * fixed seed, so every run serves the same site. Each page links to the next
+ * page, so the whole site is reachable from {@code /page0.html}, plus a number
+ * of random other pages.
+ *
+ * @author dionfeng
+ *
+ */
+public class LocalSiteFixture {
+	/** Words used to fill generated pages. */
+	private static final String[] WORDS = { "search", "engine", "crawler", "index", "query", "result", "stem",
+			"token", "page", "link", "server", "thread", "queue", "lock", "word", "count", "position", "score",
+			"partial", "exact", "fixture", "benchmark", "latency", "throughput", "caf&eacute;", "AT&amp;T" };
+
+	/** Number of pages in the site. */
+	private final int pages;
+
+	/** Approximate size of each page in bytes. */
+	private final int pageSize;
+
+	/** Number of random links on each page. */
+	private final int fanOut;
+
+	/** Seed the pages are generated from. */
+	private final long seed;
+
+	/** Delay before answering each request in milliseconds. */
+	private volatile int latency;
+
+	/** Chance of answering a request with status 503. */
+	private volatile double errorRate;
+
+	/** Whether responses are gzip compressed for clients that accept it. */
+	private boolean gzip;
+
+	/** Number of requests answered. */
+	private final LongAdder requests;
+
+	/** The running server, or {@code null} if stopped. */
+	private Server server;
+
+	/**
+	 * Initializes a site. Call {@link #start()} to serve it.
+	 *
+	 * @param pages    number of pages in the site
+	 * @param pageSize approximate size of each page in bytes
+	 * @param fanOut   number of random links on each page
+	 */
+	public LocalSiteFixture(int pages, int pageSize, int fanOut) {
+		this.pages = Math.max(1, pages);
+		this.pageSize = Math.max(0, pageSize);
+		this.fanOut = Math.max(0, fanOut);
+		this.seed = 42;
+		this.latency = 0;
+		this.errorRate = 0;
+		this.gzip = true;
+		this.requests = new LongAdder();
+	}
+
+	/**
+	 * Sets the delay before answering each request.
+	 *
+	 * @param millis delay in milliseconds
+	 */
+	public void setLatency(int millis) {
+		this.latency = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the chance of answering a request with status 503.
+	 *
+	 * @param rate chance between 0 and 1
+	 */
+	public void setErrorRate(double rate) {
+		this.errorRate = Math.max(0, Math.min(1, rate));
+	}
+
+	/**
+	 * Sets whether responses are gzip compressed for clients that accept it. Must
+	 * be called before {@link #start()}.
+	 *
+	 * @param gzip {@code true} to compress responses
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Starts serving the site on a free port.
+	 *
+	 * @return the url of the first page
+	 * @throws Exception if unable to start the server
+	 */
+	public URL start() throws Exception {
+		server = new Server(0);
+
+		ServletHandler servletHandler = new ServletHandler();
+		servletHandler.addServletWithMapping(new ServletHolder(new PageServlet()), "/*");
+
+		if (gzip) {
+			GzipHandler gzipHandler = new GzipHandler();
+			gzipHandler.setHandler(servletHandler);
+			server.setHandler(gzipHandler);
+		} else {
+			server.setHandler(servletHandler);
+		}
+
+		server.start();
+		return getSeed();
+	}
+
+	/**
+	 * Stops serving the site.
+	 *
+	 * @throws Exception if unable to stop the server
+	 */
+	public void stop() throws Exception {
+		if (server != null) {
+			server.stop();
+			server = null;
+		}
+	}
+
+	/**
+	 * Returns the url of the first page, from which every page can be reached.
+	 *
+	 * @return the seed url
+	 * @throws IOException if the server is not running
+	 */
+	public URL getSeed() throws IOException {
+		if (server == null) {
+			throw new IOException("Site is not running");
+		}
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		return new URL("http", "localhost", port, "/page0.html");
+	}
+
+	/**
+	 * Returns the number of pages in the site.
+	 *
+	 * @return number of pages
+	 */
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	 * Returns the number of requests answered.
+	 *
+	 * @return number of requests
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Generates the html of a page. The same page number always gives the same
+	 * html.
+	 *
+	 * @param page the page number
+	 * @return the html of the page
+	 */
+	public String generatePage(int page) {
+		Random random = new Random(seed * 31 + page);
+		StringBuilder html = new StringBuilder(pageSize + 512);
+		html.append("<!DOCTYPE html>\n<html><head><title>Page ").append(page).append("</title></head><body>\n");
+
+		if (page + 1 < pages) {
+			html.append("<a href=\"page").append(page + 1).append(".html\">next</a>\n");
+		}
+		for (int i = 0; i < fanOut; i++) {
+			html.append("<a href=\"/page").append(random.nextInt(pages)).append(".html\">related</a>\n");
+		}
+
+		while (html.length() < pageSize) {
+			html.append("<p>");
+			for (int i = 0; i < 30; i++) {
+				html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			html.append("</p>\n");
+		}
+
+		return html.append("</body></html>\n").toString();
+	}
+
+	/**
+	 * Serves the generated pages, injecting latency and errors.
+	 */
+	private class PageServlet extends HttpServlet {
+		/** Serialization version. */
+		private static final long serialVersionUID = 202140;
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			requests.increment();
+
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return;
+			}
+
+			int page = parsePage(request.getRequestURI());
+			if (page < 0) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			response.setContentType("text/html");
+			response.setCharacterEncoding("UTF-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().write(generatePage(page));
+		}
+
+		/**
+		 * Returns the page number of a request path.
+		 *
+		 * @param path the request path
+		 * @return the page number, or -1 if the path is not a page of the site
+		 */
+		private int parsePage(String path) {
+			if (path == null || !path.startsWith("/page") || !path.endsWith(".html")) {
+				return -1;
+			}
+
+			try {
+				int page = Integer.parseInt(path.substring(5, path.length() - 5));
+				return page >= 0 && page < pages ? page : -1;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watches heap usage during a crawl so a large crawl slows down instead of
+ * running out of memory. Above the pause threshold, fetching waits for the
+ * parse and index stages to drain. Above the spill threshold, or once the index
+ * holds more than a set number of word positions, the in-memory index is
+ * written to a segment file on disk and cleared.
+ *
+ * <p>
+ * Crawls and text builds spill the same way, and their segments stay on disk:
+ * {@link #writeJson(InvertedIndex, Path, Path)} merges them straight into the
+ * output files with {@link SegmentMerger}, so only one segment at a time needs
+ * memory. Only an index that is searched afterwards is loaded back with
+ * {@link #merge(InvertedIndex)}.
+ *
+ * <p>
+ * Spilling assumes every page is indexed exactly once, so it must not be
+ * enabled for crawls that update an index in place, such as a recrawl or a
+ * checkpointed crawl.
+ *
+ * @author dionfeng
+ *
+ */
+public class MemoryGovernor {
+	/** The default fraction of the maximum heap above which fetching pauses. */
+	public static final int DEFAULT_PAUSE = 75;
+
+	/** Percentage points above the pause threshold at which the index spills. */
+	public static final int SPILL_MARGIN = 10;
+
+	/** Longest a fetch waits for memory before going ahead anyway. */
+	public static final long MAX_PAUSE = TimeUnit.SECONDS.toNanos(5);
+
+	/** How often a paused fetch checks the heap again. */
+	private static final long POLL_MILLIS = 50;
+
+	/** Shortest time between two requested garbage collections. */
+	private static final long GC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * What the governor is currently doing.
+	 */
+	public enum State {
+		/** Memory is fine, crawling at full speed. */
+		NORMAL,
+		/** Heap is above the pause threshold, fetching waits. */
+		PAUSED,
+		/** The index is being written to disk. */
+		SPILLING
+	}
+
+	/** Heap usage of this virtual machine. */
+	private final MemoryMXBean memory;
+
+	/** Fraction of the maximum heap above which fetching pauses. */
+	private final double pauseRatio;
+
+	/** Fraction of the maximum heap above which the index spills. */
+	private final double spillRatio;
+
+	/** Most word positions kept in memory before the index spills. */
+	private final long maxPostings;
+
+	/** Directory the segments are written to, created when first needed. */
+	private Path directory;
+
+	/** Segments written so far, oldest first. */
+	private final List<Path> segments;
+
+	/** Whether the index may be spilled at all. */
+	private boolean spilling;
+
+	/** Word positions added to the index since it was last spilled. */
+	private long postings;
+
+	/** What the governor is currently doing. */
+	private volatile State state;
+
+	/** Number of segments spilled during the crawl. */
+	private int spills;
+
+	/** Number of fetches that had to wait for memory. */
+	private long pauses;
+
+	/** Total time fetches waited for memory in nanoseconds. */
+	private long pausedNanos;
+
+	/** When a garbage collection was last requested. */
+	private long lastGc;
+
+	/**
+	 * Initializes a governor that only spills when the heap is nearly full.
+	 *
+	 * @param pausePercent percentage of the maximum heap above which fetching
+	 *                     pauses
+	 * @param directory    directory for spilled segments, or {@code null} for a
+	 *                     temporary directory
+	 */
+	public MemoryGovernor(int pausePercent, Path directory) {
+		this(pausePercent, Long.MAX_VALUE, directory);
+	}
+
+	/**
+	 * Initializes a governor.
+	 *
+	 * @param pausePercent percentage of the maximum heap above which fetching
+	 *                     pauses; the index spills {@link #SPILL_MARGIN} points
+	 *                     higher
+	 * @param maxPostings  most word positions kept in memory before the index
+	 *                     spills
+	 * @param directory    directory for spilled segments, or {@code null} for a
+	 *                     temporary directory
+	 */
+	public MemoryGovernor(int pausePercent, long maxPostings, Path directory) {
+		int pause = Math.max(1, Math.min(99, pausePercent));
+		this.memory = ManagementFactory.getMemoryMXBean();
+		this.pauseRatio = pause / 100.0;
+		this.spillRatio = Math.min(99, pause + SPILL_MARGIN) / 100.0;
+		this.maxPostings = Math.max(1, maxPostings);
+		this.directory = directory;
+		this.segments = new ArrayList<>();
+		this.spilling = true;
+		this.state = State.NORMAL;
+	}
+
+	/**
+	 * Allow or forbid spilling the index. When forbidden, the governor only pauses
+	 * fetching.
+	 *
+	 * @param spilling {@code true} to allow spilling
+	 */
+	public synchronized void setSpilling(boolean spilling) {
+		this.spilling = spilling;
+	}
+
+	/**
+	 * Returns the fraction of the maximum heap in use.
+	 *
+	 * @return heap usage between 0 and 1
+	 */
+	public double getHeapUsage() {
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+		return max <= 0 ? 0 : (double) heap.getUsed() / max;
+	}
+
+	/**
+	 * Returns the heap usage, requesting a garbage collection first when the heap
+	 * looks full so garbage is not mistaken for pressure.
+	 *
+	 * @return heap usage between 0 and 1
+	 */
+	private double measure() {
+		double usage = getHeapUsage();
+		if (usage >= pauseRatio) {
+			long now = System.nanoTime();
+			boolean collect;
+			synchronized (this) {
+				collect = now - lastGc >= GC_INTERVAL;
+				if (collect) {
+					lastGc = now;
+				}
+			}
+			if (collect) {
+				memory.gc();
+				usage = getHeapUsage();
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * Waits before a fetch while the heap is above the pause threshold, spilling
+	 * the index if it is above the spill threshold. Gives up waiting after
+	 * {@link #MAX_PAUSE} so a crawl that cannot free memory still makes progress.
+	 *
+	 * @param index the index being built
+	 */
+	public void awaitMemory(InvertedIndex index) {
+		double usage = measure();
+		if (usage < pauseRatio) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		state = State.PAUSED;
+		try {
+			while (usage >= pauseRatio && System.nanoTime() - start < MAX_PAUSE) {
+				if (usage >= spillRatio) {
+					spill(index);
+				}
+				Thread.sleep(POLL_MILLIS);
+				usage = measure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			long waited = System.nanoTime() - start;
+			synchronized (this) {
+				pauses++;
+				pausedNanos += waited;
+			}
+			state = usage >= pauseRatio ? State.PAUSED : State.NORMAL;
+		}
+	}
+
+	/**
+	 * Records word positions added to the index, spilling it if it holds too many
+	 * or the heap is above the spill threshold.
+	 *
+	 * @param index the index being built
+	 * @param added number of word positions just added
+	 */
+	public void added(InvertedIndex index, int added) {
+		boolean full;
+		synchronized (this) {
+			postings += added;
+			full = postings >= maxPostings;
+		}
+		if (full || getHeapUsage() >= spillRatio && measure() >= spillRatio) {
+			spill(index);
+		}
+	}
+
+	/**
+	 * Writes the index to a new segment and clears it. Does nothing if spilling
+	 * is not allowed or the index is empty.
+	 *
+	 * @param index the index being built
+	 */
+	public synchronized void spill(InvertedIndex index) {
+		if (!spilling || postings == 0) {
+			return;
+		}
+
+		State previous = state;
+		state = State.SPILLING;
+		try {
+			if (directory == null) {
+				directory = Files.createTempDirectory("spill");
+			} else {
+				Files.createDirectories(directory);
+			}
+
+			Path segment = directory.resolve("segment" + segments.size() + ".snapshot");
+			index.spill(segment);
+			segments.add(segment);
+			spills++;
+			log.info("Spilled {} word positions to {}", postings, segment);
+			postings = 0;
+		} catch (IOException e) {
+			log.warn("Unable to spill index, keeping it in memory: {}", e.getMessage());
+			spilling = false;
+		} finally {
+			state = previous;
+		}
+	}
+
+	/**
+	 * Reads every spilled segment back into the index and deletes it.
+	 *
+	 * @param index the index the segments were spilled from
+	 * @throws IOException if unable to read a segment
+	 */
+	public synchronized void merge(InvertedIndex index) throws IOException {
+		for (Path segment : segments) {
+			index.readSnapshot(segment);
+			Files.deleteIfExists(segment);
+		}
+		if (!segments.isEmpty()) {
+			log.info("Merged {} spilled segments", segments.size());
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Spills what is left of the index, then merges every segment into the JSON
+	 * index and word counts without loading them into memory, and deletes them.
+	 * The index is left empty.
+	 *
+	 * @param index  the index the segments were spilled from
+	 * @param json   location of the JSON index, or {@code null} to skip it
+	 * @param counts location of the JSON word counts, or {@code null} to skip
+	 *               them
+	 * @throws IOException if unable to write or merge the segments
+	 */
+	public synchronized void writeJson(InvertedIndex index, Path json, Path counts) throws IOException {
+		if (directory == null) {
+			directory = Files.createTempDirectory("spill");
+		}
+
+		Path segment = directory.resolve("segment" + segments.size() + ".snapshot");
+		index.spill(segment);
+		segments.add(segment);
+		postings = 0;
+
+		try {
+			SegmentMerger.writeJson(segments, json, counts);
+			log.info("Merged {} spilled segments into the output", segments.size());
+		} finally {
+			for (Path spilled : segments) {
+				Files.deleteIfExists(spilled);
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 * Returns what the governor is currently doing.
+	 *
+	 * @return the current state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of segments spilled and not yet merged back.
+	 *
+	 * @return number of segments on disk
+	 */
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the number of segments spilled, including those merged back.
+	 *
+	 * @return number of spills
+	 */
+	public synchronized int getSpills() {
+		return spills;
+	}
+
+	/**
+	 * Returns the number of fetches that waited for memory.
+	 *
+	 * @return number of pauses
+	 */
+	public synchronized long getPauses() {
+		return pauses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s, heap %.0f%%, %d pauses (%d ms), %d segments spilled", state,
+				getHeapUsage() * 100, pauses, TimeUnit.NANOSECONDS.toMillis(pausedNanos), spills);
+	}
+}
@@ -2,11 +2,13 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import opennlp.tools.stemmer.Stemmer;
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * Multithread version of web crawler that fetch web page content from the given
@@ -27,14 +29,101 @@ public class MultiThreadCrawler {
 	private final WorkQueue taskManagerQueue;
 
 	/**
-	 * Set of crawled urls
+	 * Fingerprints of the normalized urls already queued for crawling
+	 */
+	private final UrlFingerprintSet crawled;
+
+	/**
+	 * Number of urls queued for crawling, never more than {@link #MAX}
 	 */
-	private final Set<URL> crawled;
+	private final AtomicInteger queued;
+	/**
+	 * Number of pages that failed to fetch with no links stored from an earlier
+	 * crawl, so pages reached only through them may have been missed
+	 */
+	private final AtomicInteger failures;
+
 	/**
 	 * Total amount of crawl times
 	 */
 	private final int MAX;
 
+	/**
+	 * Detects near-duplicate pages, or {@code null} to index every page
+	 */
+	private NearDuplicateDetector duplicateDetector;
+
+	/**
+	 * Persists the frontier and index so the crawl can resume, or {@code null} to
+	 * crawl in memory only
+	 */
+	private CrawlCheckpoint checkpoint;
+
+	/**
+	 * Keeps the text of every indexed page so the index can be rebuilt without
+	 * crawling, or {@code null} to keep nothing
+	 */
+	private ContentStore contentStore;
+
+	/**
+	 * Pauses fetching and spills the index when memory runs low, or {@code null}
+	 * to ignore memory usage
+	 */
+	private MemoryGovernor governor;
+
+	/**
+	 * Per-host frontier that decides when each queued url is fetched
+	 */
+	private HostScheduler scheduler;
+
+	/**
+	 * Compressed and uncompressed bytes fetched by this crawler
+	 */
+	private final HtmlUtils.FetchStatistics statistics;
+
+	/**
+	 * Connect, read and total time allowed for each fetch
+	 */
+	private HtmlUtils.FetchBudget budget;
+
+	/**
+	 * Host lookups shared by every fetch of this crawler
+	 */
+	private DnsCache resolver;
+
+	/**
+	 * Number of threads parsing and stemming fetched pages
+	 */
+	private int parseThreads;
+
+	/**
+	 * Stage parsing and stemming fetched pages while a crawl runs
+	 */
+	private PipelineStage parseStage;
+
+	/**
+	 * Stage merging parsed pages into the index while a crawl runs
+	 */
+	private PipelineStage indexStage;
+
+	/**
+	 * Throughput of the fetch stage
+	 */
+	private final PipelineStage.Metrics fetchMetrics;
+
+	/**
+	 * Number of pages queued and not yet through every stage
+	 */
+	private int pagesInFlight;
+
+	/**
+	 * Tasks waiting or running per stage thread before a stage pushes back
+	 */
+	public static final int STAGE_CAPACITY = 2;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * Initialize a thread-safe inverted index and work queue
 	 * 
@@ -43,11 +132,34 @@ public class MultiThreadCrawler {
 	 * @param capacity Maximum capacity of the crawl queue
 	 */
 	public MultiThreadCrawler(ThreadSafeInvertedIndex index, WorkQueue manager, int capacity) {
+		this(index, manager, capacity, new UrlFingerprintSet());
+	}
+
+	/**
+	 * Initialize a thread-safe inverted index and work queue, using the given set
+	 * to remember which urls were already queued
+	 * 
+	 * @param index    thread-safe inverted index
+	 * @param manager  work queue to do tasks
+	 * @param capacity Maximum capacity of the crawl queue
+	 * @param crawled  empty set of crawled url fingerprints
+	 */
+	public MultiThreadCrawler(ThreadSafeInvertedIndex index, WorkQueue manager, int capacity,
+			UrlFingerprintSet crawled) {
 		this.safeInvertedIndex = index;
 		this.taskManagerQueue = manager;
 		this.MAX = capacity;
 
-		this.crawled = new HashSet<>();
+		this.crawled = crawled;
+		this.queued = new AtomicInteger();
+		this.failures = new AtomicInteger();
+		this.scheduler = new HostScheduler(manager);
+		this.statistics = new HtmlUtils.FetchStatistics();
+		this.budget = HtmlUtils.FetchBudget.DEFAULT;
+		this.resolver = new DnsCache();
+		this.parseThreads = Runtime.getRuntime().availableProcessors();
+		this.fetchMetrics = new PipelineStage.Metrics("fetch");
+		this.pagesInFlight = 0;
 	}
 
 	/**
@@ -60,9 +172,195 @@ public class MultiThreadCrawler {
 	 */
 	public void crawl(String url) throws MalformedURLException, IOException {
 		URL seed = new URL(url);
-		crawled.add(seed);
-		taskManagerQueue.execute(new Tasks(seed));
+		String normalized = new HtmlUtils.LinkResolver(seed).resolve(url);
+		if (normalized != null) {
+			seed = new URL(normalized);
+		}
+
+		if (governor != null && checkpoint != null) {
+			// checkpoints and recrawls update the index in place, which segments on disk would miss
+			governor.setSpilling(false);
+		}
+
+		parseStage = new PipelineStage("parse", parseThreads, parseThreads * STAGE_CAPACITY);
+		indexStage = new PipelineStage("index", 1, parseThreads * STAGE_CAPACITY);
+
+		try {
+			boolean resumed = checkpoint != null && checkpoint.resume(seed.toString(), safeInvertedIndex, crawled);
+			if (contentStore != null && !resumed && (checkpoint == null || checkpoint.getPages().size() == 0)) {
+				// a fresh crawl, so nothing stored by an earlier crawl belongs to it
+				contentStore.clear();
+			}
+
+			if (resumed) {
+				queued.set((int) crawled.size());
+				for (String pending : checkpoint.getPending()) {
+					submit(new URL(pending));
+				}
+			} else {
+				crawled.add(seed.toString());
+				queued.incrementAndGet();
+				if (checkpoint != null) {
+					checkpoint.queued(seed.toString());
+				}
+				submit(seed);
+			}
+		} finally {
+			// also on failure, so the stage threads never keep the program running
+			awaitPages();
+			scheduler.finish();
+			parseStage.join();
+			indexStage.join();
+		}
 		taskManagerQueue.finish();
+
+		if (checkpoint != null) {
+			if (failures.get() > 0 || Thread.currentThread().isInterrupted()) {
+				log.warn("Keeping pages not reached, {} pages failed to fetch", failures.get());
+			} else {
+				removeUnreached();
+			}
+			checkpoint.finish(safeInvertedIndex);
+		}
+		log.info("Crawled {}: {}", seed, statistics);
+		log.info("Stages: {}; {}; {}", fetchMetrics, parseStage, indexStage);
+		log.info("Hosts: {}", scheduler);
+		log.info("DNS: {}", resolver);
+		log.info("Stems: {}", StemCache.getDefault());
+		if (governor != null) {
+			log.info("Memory: {}", governor);
+		}
+		if (duplicateDetector != null) {
+			log.info("Near-duplicates: {}", duplicateDetector);
+		}
+	}
+
+	/**
+	 * Skip indexing pages that are near-duplicates of a page already crawled
+	 * 
+	 * @param detector near-duplicate detector, or {@code null} to index every page
+	 */
+	public void setDuplicateDetector(NearDuplicateDetector detector) {
+		this.duplicateDetector = detector;
+	}
+
+	/**
+	 * Persist the frontier, visited pages and periodic index snapshots so a crawl
+	 * from the same seed can resume after a crash. Near-duplicate signatures are
+	 * not persisted, so a resumed crawl only detects duplicates among the pages it
+	 * fetches itself.
+	 * 
+	 * @param checkpoint crawl state to use, or {@code null} to crawl in memory only
+	 */
+	public void setCheckpoint(CrawlCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Keep the text of every indexed page in a content store, so the index can be
+	 * rebuilt later with {@link InvertedIndexBuilder#build(ContentStore)}. The
+	 * store is cleared when a crawl starts unless it resumes or recrawls.
+	 * 
+	 * @param store content store to write, or {@code null} to keep nothing
+	 */
+	public void setContentStore(ContentStore store) {
+		this.contentStore = store;
+	}
+
+	/**
+	 * Watch memory while crawling, pausing fetches and spilling the index to disk
+	 * when the heap runs low. Spilling is turned off for checkpointed crawls. The
+	 * spilled segments stay on disk after the crawl; merge them back with
+	 * {@link MemoryGovernor#merge(InvertedIndex)} before searching the index.
+	 * 
+	 * @param governor memory governor to use, or {@code null} to ignore memory
+	 */
+	public void setMemoryGovernor(MemoryGovernor governor) {
+		this.governor = governor;
+	}
+
+	/**
+	 * Returns the memory governor used by this crawler
+	 * 
+	 * @return the memory governor, or {@code null} if memory is ignored
+	 */
+	public MemoryGovernor getMemoryGovernor() {
+		return governor;
+	}
+
+	/**
+	 * Set the number of threads parsing and stemming fetched pages, separate from
+	 * the work queue threads fetching them. Must be called before crawling.
+	 * 
+	 * @param threads number of parse threads
+	 */
+	public void setParseThreads(int threads) {
+		this.parseThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Replace the per-host scheduler, for example to change the politeness limits.
+	 * Must be called before crawling.
+	 * 
+	 * @param scheduler scheduler that runs the fetches on the work queue
+	 */
+	public void setScheduler(HostScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Returns the per-host scheduler used by this crawler
+	 * 
+	 * @return the host scheduler
+	 */
+	public HostScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the near-duplicate detector used by this crawler
+	 * 
+	 * @return near-duplicate detector, or {@code null} if every page is indexed
+	 */
+	public NearDuplicateDetector getDuplicateDetector() {
+		return duplicateDetector;
+	}
+
+	/**
+	 * Set the time allowed for each fetch, so a slow server can never hold a
+	 * worker for longer than the deadline
+	 * 
+	 * @param budget connect, read and total time allowed for each fetch
+	 */
+	public void setFetchBudget(HtmlUtils.FetchBudget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Replace the host lookup cache, for example to change its times to live
+	 * 
+	 * @param resolver host lookup cache shared by every fetch
+	 */
+	public void setResolver(DnsCache resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Returns the host lookup cache used by this crawler
+	 * 
+	 * @return the host lookup cache
+	 */
+	public DnsCache getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * Returns the transfer statistics of every page fetched by this crawler
+	 * 
+	 * @return compressed and uncompressed byte counts
+	 */
+	public HtmlUtils.FetchStatistics getStatistics() {
+		return statistics;
 	}
 
 	/**
@@ -70,51 +368,79 @@ public class MultiThreadCrawler {
 	 * 
 	 * @param target url to fetch
 	 * @return fetched html from the web
-	 * @throws IOException if unable to fetch
+	 * @throws IOException if unable to connect or the server returned an error
 	 */
 	public String downloadUrls(URL target) throws IOException {
-		return HtmlUtils.HtmlFetcher.fetch(target, 3);
+		return HtmlUtils.HtmlFetcher.fetchPage(target, 3, statistics, budget, resolver);
 	}
 
 	/**
-	 * Clean the html by removing comments and blocks elements
+	 * Queue the url with the per-host scheduler
 	 * 
-	 * @param html fetched html
-	 * @return cleaned html
+	 * @param url normalized url to crawl
 	 */
-	public String cleanHtml(String html) {
-		return HtmlUtils.HtmlCleaner.stripBlockElements(html);
+	private void submit(URL url) {
+		synchronized (this) {
+			pagesInFlight++;
+		}
+		scheduler.submit(url, new Tasks(url));
 	}
 
 	/**
-	 * Remove tags and entities from the html
+	 * Wait until every queued page has been fetched, parsed and indexed, including
+	 * pages queued while waiting
+	 */
+	private synchronized void awaitPages() {
+		while (pagesInFlight > 0) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Parse the html in a single pass, returning the text of the page and adding
+	 * the absolute links found outside comments and block elements to the list
 	 * 
-	 * @param html fetched html
-	 * @return cleaned html
+	 * @param target url of the page, used to resolve relative links
+	 * @param html   fetched html
+	 * @param links  list to add the links of the page to
+	 * @return text of the page
 	 */
-	public String removeExtra(String html) {
-		html = HtmlUtils.HtmlCleaner.stripTags(html);
-		html = HtmlUtils.HtmlCleaner.stripEntities(html);
-		return html;
+	public String parseHtml(URL target, String html, List<String> links) {
+		StringBuilder text = new StringBuilder(html.length());
+		HtmlUtils.HtmlTokenizer.stripHtml(html, text, new HtmlUtils.LinkResolver(target), links);
+		return text.toString();
 	}
 
 	/**
-	 * Crawl the urls from the given url and added to the set of urls
+	 * Add the links not crawled yet to the set of urls and queue them for crawling
 	 * 
-	 * @param target seed url
-	 * @param html   page content
+	 * @param links absolute links found on a page
 	 */
-	public void processUrls(URL target, String html) {
-		ArrayList<URL> urlList = HtmlUtils.LinkParser.getValidLinks(target, html);
-		synchronized (crawled) {
-			if (!urlList.isEmpty()) {
-				for (URL url : urlList) {
-					if (crawled.size() >= MAX) {
-						break;
-					} else if (!crawled.contains(url)) {
-						crawled.add(url);
-						taskManagerQueue.execute(new Tasks(url));
+	public void processUrls(List<String> links) {
+		for (String link : links) {
+			if (queued.get() >= MAX) {
+				break;
+			}
+
+			if (crawled.add(link)) {
+				if (queued.getAndIncrement() >= MAX) {
+					break;
+				}
+
+				try {
+					if (checkpoint != null) {
+						checkpoint.queued(link);
 					}
+					submit(new URL(link));
+				} catch (MalformedURLException e) {
+					System.err.println("Unable to crawl url: " + link);
+				} catch (IOException e) {
+					log.warn("Unable to record queued url {}: {}", link, e.getMessage());
 				}
 			}
 		}
@@ -128,18 +454,123 @@ public class MultiThreadCrawler {
 	 * @param content web page content(words)
 	 */
 	public void processHTML(URL url, String content) {
+		processStems(url, stemPage(content));
+	}
+
+	/**
+	 * Clean, split and stem the text of a web page
+	 * 
+	 * @param content web page content(words)
+	 * @return stemmed words of the page in order
+	 */
+	public List<String> stemPage(String content) {
+		Stemmer stemmer = StemCache.getDefault();
+		List<String> stems = new ArrayList<>();
+		ParseUtils.parse(content, word -> stems.add(stemmer.stem(word).toString()));
+		return stems;
+	}
+
+	/**
+	 * Add the stemmed words of a web page to the thread-safe inverted index
+	 * 
+	 * @param url   location of the web page
+	 * @param stems stemmed words of the page in order
+	 */
+	public void processStems(URL url, List<String> stems) {
 		InvertedIndex local = new InvertedIndex();
-		int position = 0;
-		Stemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
-		for (String word : ParseUtils.parse(content)) {
-			local.add(stemmer.stem(word).toString(), url.toString(), ++position);
-		}
+		local.addWord(stems, url.toString());
 		safeInvertedIndex.addAll(local);
+		if (governor != null) {
+			governor.added(safeInvertedIndex, stems.size());
+		}
+	}
+
+	/**
+	 * Apply the index update of a crawled page and, when checkpointing, record the
+	 * page as visited
+	 * 
+	 * @param url    location of the web page
+	 * @param update changes the page makes to the index, or {@code null} if the
+	 *               page leaves the index unchanged
+	 */
+	private void finishPage(URL url, Runnable update) {
+		try {
+			if (checkpoint == null) {
+				if (update != null) {
+					update.run();
+				}
+			} else {
+				checkpoint.visited(url.toString(), update, safeInvertedIndex);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to checkpoint crawl after {}: {}", url, e.getMessage());
+		} finally {
+			synchronized (this) {
+				if (--pagesInFlight <= 0) {
+					this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keep the text of an indexed page in the content store, or drop the text an
+	 * earlier crawl stored for a page no longer indexed
+	 * 
+	 * @param location  location of the web page
+	 * @param text      text of the page, or {@code null} if the page is gone
+	 * @param duplicate whether the page is left out of the index
+	 */
+	private void storePage(String location, String text, boolean duplicate) {
+		if (contentStore == null) {
+			return;
+		}
+
+		try {
+			if (duplicate) {
+				contentStore.remove(location);
+			} else {
+				contentStore.put(location, text);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to store content of {}: {}", location, e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove the pages of an earlier crawl that this crawl never reached, such as
+	 * pages no longer linked from anywhere, so a recrawl ends with the same index
+	 * as a fresh crawl. Only called when every page was fetched or kept, since a
+	 * page that failed may be the only link to others
+	 * 
+	 * @throws IOException if unable to update the content store
+	 */
+	private void removeUnreached() throws IOException {
+		List<String> unreached = new ArrayList<>();
+		for (String location : safeInvertedIndex.getCountLocations()) {
+			if (!crawled.contains(location)) {
+				unreached.add(location);
+			}
+		}
+		for (String location : checkpoint.getPages().getUrls()) {
+			if (!crawled.contains(location)) {
+				unreached.add(location);
+			}
+		}
+
+		if (!unreached.isEmpty()) {
+			log.info("Removing {} pages no longer reached", unreached.size());
+			safeInvertedIndex.removeLocations(unreached);
+			checkpoint.getPages().removeAll(unreached);
+			if (contentStore != null) {
+				contentStore.removeAll(unreached);
+			}
+		}
 	}
 
 	/**
-	 * Worker class that perform fetching urls and adding page contents to the
-	 * thread-safe inverted index
+	 * Fetch stage task that downloads a page and hands it to the parse stage,
+	 * finishing the page itself when there is nothing to parse
 	 * 
 	 * @author dionfeng
 	 *
@@ -161,19 +592,157 @@ public class MultiThreadCrawler {
 
 		@Override
 		public void run() {
+			String location = taskUrl.toString();
+			PageMetadataStore pages = checkpoint == null ? null : checkpoint.getPages();
+			PageMetadataStore.PageMetadata previous = pages == null ? null : pages.get(location);
+			Runnable update = null;
+			boolean parsing = false;
+
 			try {
-				String html = downloadUrls(taskUrl);
+				if (governor != null) {
+					governor.awaitMemory(safeInvertedIndex);
+				}
+
+				long start = System.nanoTime();
+				HtmlUtils.FetchResult result;
+				try {
+					result = HtmlUtils.HtmlFetcher.fetchConditional(taskUrl, 3, statistics, budget, resolver,
+							previous == null ? null : previous.getEtag(),
+							previous == null ? null : previous.getLastModified());
+				} catch (IOException e) {
+					scheduler.report(taskUrl, System.nanoTime() - start, false);
+					throw e;
+				}
+				scheduler.report(taskUrl, System.nanoTime() - start, true);
+				fetchMetrics.record(System.nanoTime() - start);
+
+				String html = result.getHtml();
+				long hash = html == null ? 0 : UrlFingerprintSet.fingerprint(html);
+
+				if (previous != null && (result.isNotModified() || html != null && hash == previous.getHash())) {
+					// unchanged since the last crawl, keep its postings and follow its stored links
+					if (html != null) {
+						pages.put(location, new PageMetadataStore.PageMetadata(result.getEtag(),
+								result.getLastModified(), hash, previous.getLinks()));
+					}
+					processUrls(previous.getLinks());
+					return;
+				}
+
 				if (html == null) {
+					if (previous != null && result.isGone()) {
+						pages.removeAll(List.of(location));
+						storePage(location, null, true);
+						update = () -> safeInvertedIndex.removeLocations(List.of(location));
+					} else if (previous != null) {
+						// no longer html, keep the page from the last crawl and follow its stored links
+						processUrls(previous.getLinks());
+					}
 					return;
 				}
-				html = cleanHtml(html);
-				processUrls(taskUrl, html);
-				html = removeExtra(html);
-				processHTML(taskUrl, html);
+
+				// blocks while the parse stage is full, slowing down fetching
+				parseStage.submit(new ParseTask(taskUrl, result, hash, previous != null));
+				parsing = true;
 			} catch (IOException e) {
-				System.err.println("Unable to fetch url from: " + taskUrl.toString());
+				System.err.println("Unable to fetch url from: " + location);
+				if (previous != null) {
+					// keep the page from the last crawl and follow its stored links
+					processUrls(previous.getLinks());
+				} else {
+					failures.incrementAndGet();
+				}
+			} finally {
+				if (!parsing) {
+					finishPage(taskUrl, update);
+				}
 			}
 		}
+	}
+
+	/**
+	 * Parse stage task that extracts the text and links of a fetched page, stems
+	 * its words and hands the index update to the index stage
+	 * 
+	 * @author dionfeng
+	 *
+	 */
+	private class ParseTask implements Runnable {
+		/**
+		 * url of the page
+		 */
+		private final URL taskUrl;
+
+		/**
+		 * the fetched page
+		 */
+		private final HtmlUtils.FetchResult result;
+
+		/**
+		 * fingerprint of the html
+		 */
+		private final long hash;
+
+		/**
+		 * whether the page was indexed by an earlier crawl
+		 */
+		private final boolean replace;
+
+		/**
+		 * Initialize a task for a fetched page
+		 * 
+		 * @param url     url of the page
+		 * @param result  the fetched page
+		 * @param hash    fingerprint of the html
+		 * @param replace whether the page was indexed by an earlier crawl
+		 */
+		public ParseTask(URL url, HtmlUtils.FetchResult result, long hash, boolean replace) {
+			this.taskUrl = url;
+			this.result = result;
+			this.hash = hash;
+			this.replace = replace;
+		}
+
+		@Override
+		public void run() {
+			String location = taskUrl.toString();
+			Runnable update = null;
 
+			try {
+				List<String> links = new ArrayList<>();
+				String text = parseHtml(taskUrl, result.getHtml(), links);
+				List<String> stems = stemPage(text);
+
+				NearDuplicateDetector detector = duplicateDetector;
+				boolean duplicate = detector != null && detector.isDuplicate(stems, links.size());
+				storePage(location, text, duplicate);
+				boolean follow = !duplicate || detector.followsDuplicates();
+
+				if (follow) {
+					processUrls(links);
+				}
+				if (checkpoint != null) {
+					checkpoint.getPages().put(location, new PageMetadataStore.PageMetadata(result.getEtag(),
+							result.getLastModified(), hash, follow ? links : List.of()));
+				}
+
+				if (replace) {
+					InvertedIndex local = new InvertedIndex();
+					if (!duplicate) {
+						local.addWord(stems, location);
+					}
+					update = () -> safeInvertedIndex.replaceLocation(location, local);
+				} else if (!duplicate) {
+					update = () -> processStems(taskUrl, stems);
+				}
+			} finally {
+				if (update == null) {
+					finishPage(taskUrl, null);
+				} else {
+					Runnable merge = update;
+					indexStage.submit(() -> finishPage(taskUrl, merge));
+				}
+			}
+		}
 	}
 }
@@ -1,5 +1,13 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Inverted Index Builder for MultiThreading by using {@link WorkQueue} and
@@ -19,6 +27,22 @@ public class MultiThreadIndexBuilder extends InvertedIndexBuilder {
 	 */
 	private final WorkQueue taskManagerQueue;
 
+	/**
+	 * Files larger than this many bytes are split into chunks indexed in parallel
+	 */
+	private long chunkSize;
+
+	/**
+	 * Default chunk size in bytes
+	 */
+	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Most bytes searched past a chunk boundary for a line break before settling
+	 * for any space
+	 */
+	private static final int MAX_SEEK = 1024 * 1024;
+
 	/**
 	 * Initialize thread-safe inverted index and WorkQueue with given threads
 	 *
@@ -29,18 +53,296 @@ public class MultiThreadIndexBuilder extends InvertedIndexBuilder {
 		super(index);
 		this.safeInvertedIndex = index;
 		this.taskManagerQueue = manager;
+		this.chunkSize = DEFAULT_CHUNK_SIZE;
+	}
+
+	/**
+	 * Set the size above which a file is split into chunks indexed in parallel
+	 *
+	 * @param bytes chunk size in bytes
+	 */
+	public void setChunkSize(long bytes) {
+		this.chunkSize = Math.max(1, bytes);
 	}
 
+	/**
+	 * Index the file, or every text file in the directory. Directories are walked
+	 * on the work queue and each file is queued as soon as it is found, so walking
+	 * and indexing overlap. Deleted files are only removed if every directory
+	 * could be read.
+	 */
 	@Override
 	public void build(Path paths) throws IOException {
-		super.build(paths);
+		AtomicBoolean complete = new AtomicBoolean(true);
+		if (Files.isDirectory(paths)) {
+			FilesFinder.traverseDirectory(paths, taskManagerQueue, path -> {
+				try {
+					processFile(path);
+				} catch (IOException e) {
+					System.err.println("Unable to read file: " + path);
+				}
+			}, directory -> {
+				System.err.println("Unable to read directory: " + directory);
+				complete.set(false);
+			});
+		} else {
+			processFile(paths);
+		}
 		taskManagerQueue.finish();
+		if (complete.get()) {
+			removeDeleted(paths);
+		}
+	}
+
+	/**
+	 * Index the file, or every text file in the directory, then keep the index up
+	 * to date as files are created, changed or deleted, until the watcher is
+	 * closed. The watcher is started before the build, so changes made during the
+	 * build are not missed, but only applies them once the build is done.
+	 *
+	 * @param paths          the text file or directory
+	 * @param debounceMillis how long a file must stay unchanged before it is
+	 *                       indexed again
+	 * @return the running watcher
+	 * @throws IOException if unable to watch or read the path
+	 */
+	public DirectoryWatcher watch(Path paths, int debounceMillis) throws IOException {
+		DirectoryWatcher watcher = new DirectoryWatcher(paths, safeInvertedIndex, debounceMillis);
+		watcher.start();
+		try {
+			build(paths);
+		} catch (IOException e) {
+			watcher.close();
+			throw e;
+		}
+		watcher.resume();
+		return watcher;
+	}
+
+	@Override
+	public void build(ContentStore store) throws IOException {
+		super.build(store);
+		taskManagerQueue.finish();
+	}
+
+	@Override
+	public void processPage(String url, ContentStore store) {
+		taskManagerQueue.execute(() -> {
+			InvertedIndex local = new InvertedIndex();
+			try {
+				InvertedIndexBuilder.processPage(url, store.get(url), local);
+			} catch (IOException e) {
+				System.err.println("Unable to read stored page: " + url);
+			}
+			safeInvertedIndex.addAll(local);
+		});
 	}
 
 	@Override
 	public void processFile(Path path) throws IOException {
-		Tasks task = new Tasks(path);
-		taskManagerQueue.execute(task);
+		if (!needsIndexing(path)) {
+			return;
+		}
+
+		long size;
+		try {
+			size = Files.size(path);
+		} catch (IOException e) {
+			failed(path);
+			throw e;
+		}
+		if (size <= chunkSize) {
+			Tasks task = new Tasks(path);
+			taskManagerQueue.execute(task);
+			return;
+		}
+
+		List<Long> bounds = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long start = 0;
+			bounds.add(start);
+			while (start < size) {
+				start = start + chunkSize >= size ? size : nextBoundary(channel, start + chunkSize, size);
+				bounds.add(start);
+			}
+		} catch (IOException e) {
+			failed(path);
+			throw e;
+		}
+
+		ChunkedFile file = new ChunkedFile(path, bounds.size() - 1);
+		for (int i = 0; i < bounds.size() - 1; i++) {
+			taskManagerQueue.execute(new ChunkTask(file, i, bounds.get(i), bounds.get(i + 1)));
+		}
+	}
+
+	/**
+	 * Find where a chunk should end: after the first line break at or past the
+	 * offset, or after the first space if no line break is near, so chunks never
+	 * split a word or character
+	 *
+	 * @param channel the open file
+	 * @param from    offset to start searching at
+	 * @param size    size of the file
+	 * @return offset after the line break or space, or the file size
+	 * @throws IOException if unable to read
+	 */
+	private static long nextBoundary(FileChannel channel, long from, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long space = -1;
+		long position = from;
+
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n' || b == '\r') {
+					return position + i + 1;
+				}
+				if (space < 0 && ParseUtils.Tokenizer.isSpace(b)) {
+					space = position + i + 1;
+				}
+			}
+
+			position += read;
+			if (space >= 0 && position - from >= MAX_SEEK) {
+				return space;
+			}
+		}
+
+		return space >= 0 ? space : size;
+	}
+
+	/**
+	 * Chunks of a large file being indexed, merged in order into the thread-safe
+	 * index once every chunk is done
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	private class ChunkedFile {
+		/**
+		 * Path of the file location
+		 */
+		private final Path fileLocation;
+
+		/**
+		 * Index of each chunk, with positions starting from 1
+		 */
+		private final InvertedIndex[] locals;
+
+		/**
+		 * Number of words in each chunk
+		 */
+		private final int[] counts;
+
+		/**
+		 * Number of chunks not done yet
+		 */
+		private final AtomicInteger remaining;
+
+		/**
+		 * Initialize a file split into chunks
+		 *
+		 * @param path   file location
+		 * @param chunks number of chunks
+		 */
+		public ChunkedFile(Path path, int chunks) {
+			this.fileLocation = path;
+			this.locals = new InvertedIndex[chunks];
+			this.counts = new int[chunks];
+			this.remaining = new AtomicInteger(chunks);
+		}
+
+		/**
+		 * Record a finished chunk, merging every chunk if it was the last one. The
+		 * atomic countdown makes the other chunks' results visible to the merge,
+		 * which checks every chunk was read before adding any of them.
+		 *
+		 * @param chunk number of the chunk
+		 * @param local index of the chunk, or {@code null} if it could not be read
+		 * @param count number of words in the chunk
+		 */
+		public void finish(int chunk, InvertedIndex local, int count) {
+			locals[chunk] = local;
+			counts[chunk] = count;
+
+			if (remaining.decrementAndGet() == 0) {
+				for (InvertedIndex read : locals) {
+					if (read == null) {
+						System.err.println("Unable to read file: " + fileLocation);
+						failed(fileLocation);
+						return;
+					}
+				}
+
+				int offset = 0;
+				for (int i = 0; i < locals.length; i++) {
+					safeInvertedIndex.addAll(locals[i], offset);
+					offset += counts[i];
+				}
+				added(offset);
+			}
+		}
+	}
+
+	/**
+	 * Task class that indexes one chunk of a large file
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	private class ChunkTask implements Runnable {
+		/**
+		 * The file the chunk belongs to
+		 */
+		private final ChunkedFile file;
+
+		/**
+		 * Number of the chunk
+		 */
+		private final int chunk;
+
+		/**
+		 * Offset of the first byte of the chunk
+		 */
+		private final long start;
+
+		/**
+		 * Offset after the last byte of the chunk
+		 */
+		private final long end;
+
+		/**
+		 * Initialize task to the worker thread
+		 *
+		 * @param file  the file the chunk belongs to
+		 * @param chunk number of the chunk
+		 * @param start offset of the first byte of the chunk
+		 * @param end   offset after the last byte of the chunk
+		 */
+		public ChunkTask(ChunkedFile file, int chunk, long start, long end) {
+			this.file = file;
+			this.chunk = chunk;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			InvertedIndex local = new InvertedIndex();
+			try {
+				int count = InvertedIndexBuilder.processFile(file.fileLocation, start, end, local);
+				file.finish(chunk, local, count);
+			} catch (IOException e) {
+				file.finish(chunk, null, 0);
+			}
+		}
 	}
 
 	/**
@@ -68,12 +370,15 @@ public class MultiThreadIndexBuilder extends InvertedIndexBuilder {
 		@Override
 		public void run() {
 			InvertedIndex local = new InvertedIndex();
+			int count = 0;
 			try {
-				InvertedIndexBuilder.processFile(fileLocation, local);
+				count = InvertedIndexBuilder.processFile(fileLocation, local);
 			} catch (IOException e) {
 				System.err.println("Unable to read file: " + fileLocation);
+				failed(fileLocation);
 			}
 			safeInvertedIndex.addAll(local);
+			added(count);
 		}
 	}
 }
@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects pages whose content is nearly identical to a page seen before, such
+ * as printer-friendly views or the same article under different session
+ * parameters. Each page is reduced to a 64-bit SimHash of its stemmed word
+ * pairs; two pages are near-duplicates when their signatures differ in at most
+ * a configured number of bits.
+ *
+ * <p>
+ * Signatures are indexed in {@code distance + 1} bands of bits. Two signatures
+ * within the distance must agree exactly on at least one band, so only the
+ * signatures sharing a band need to be compared.
+ *
+ * @author dionfeng
+ *
+ */
+public class NearDuplicateDetector {
+	/** The default maximum Hamming distance between near-duplicate pages. */
+	public static final int DEFAULT_DISTANCE = 3;
+
+	/** Maximum number of differing signature bits for a near-duplicate. */
+	private final int distance;
+
+	/** Whether links on near-duplicate pages are still crawled. */
+	private final boolean followDuplicates;
+
+	/** First bit of each band. */
+	private final int[] bandStart;
+
+	/** Number of bits in each band. */
+	private final int[] bandWidth;
+
+	/** Signatures seen so far, indexed by the value of each band. */
+	private final List<Map<Long, List<Long>>> bands;
+
+	/** Number of pages checked. */
+	private final LongAdder pages;
+
+	/** Number of pages found to be near-duplicates. */
+	private final LongAdder duplicates;
+
+	/** Number of words not indexed because their page was a near-duplicate. */
+	private final LongAdder skippedWords;
+
+	/** Number of links not followed because their page was a near-duplicate. */
+	private final LongAdder skippedLinks;
+
+	/**
+	 * Initializes a detector with no pages seen.
+	 *
+	 * @param distance         maximum number of differing bits between the
+	 *                         signatures of near-duplicate pages
+	 * @param followDuplicates whether links on near-duplicate pages should still
+	 *                         be crawled
+	 */
+	public NearDuplicateDetector(int distance, boolean followDuplicates) {
+		this.distance = Math.max(0, Math.min(distance, 31));
+		this.followDuplicates = followDuplicates;
+
+		int count = this.distance + 1;
+		this.bandStart = new int[count];
+		this.bandWidth = new int[count];
+		this.bands = new ArrayList<>(count);
+
+		for (int i = 0, start = 0; i < count; i++) {
+			bandStart[i] = start;
+			bandWidth[i] = 64 / count + (i < 64 % count ? 1 : 0);
+			start += bandWidth[i];
+			bands.add(new HashMap<>());
+		}
+
+		this.pages = new LongAdder();
+		this.duplicates = new LongAdder();
+		this.skippedWords = new LongAdder();
+		this.skippedLinks = new LongAdder();
+	}
+
+	/**
+	 * Computes the SimHash signature of the stemmed words of a page. Consecutive
+	 * pairs of stems are used as features, so pages with the same vocabulary in a
+	 * different order still get different signatures.
+	 *
+	 * @param stems the stemmed words of the page in order
+	 * @return the 64-bit signature
+	 */
+	public static long simHash(List<String> stems) {
+		int[] weights = new int[64];
+		long previous = 0;
+
+		for (int i = 0; i < stems.size(); i++) {
+			long hash = UrlFingerprintSet.fingerprint(stems.get(i));
+			if (i > 0 || stems.size() == 1) {
+				long feature = mix(previous * 0x9e3779b97f4a7c15L + hash);
+				for (int bit = 0; bit < 64; bit++) {
+					weights[bit] += ((feature >>> bit) & 1) == 1 ? 1 : -1;
+				}
+			}
+			previous = hash;
+		}
+
+		long signature = 0;
+		for (int bit = 0; bit < 64; bit++) {
+			if (weights[bit] > 0) {
+				signature |= 1L << bit;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Scrambles the bits of a value so nearby inputs give unrelated outputs.
+	 *
+	 * @param value the value to scramble
+	 * @return the scrambled value
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Checks whether the page is a near-duplicate of a page checked before,
+	 * remembering its signature if not. Pages without any words are never
+	 * considered duplicates.
+	 *
+	 * @param stems the stemmed words of the page in order
+	 * @param links the number of links found on the page
+	 * @return {@code true} if the page should not be indexed
+	 */
+	public boolean isDuplicate(List<String> stems, int links) {
+		pages.increment();
+		if (stems.isEmpty()) {
+			return false;
+		}
+
+		if (!checkAndAdd(simHash(stems))) {
+			return false;
+		}
+
+		duplicates.increment();
+		skippedWords.add(stems.size());
+		if (!followDuplicates) {
+			skippedLinks.add(links);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether links on near-duplicate pages should still be crawled.
+	 *
+	 * @return {@code true} if links of near-duplicate pages are followed
+	 */
+	public boolean followsDuplicates() {
+		return followDuplicates;
+	}
+
+	/**
+	 * Returns the number of pages checked.
+	 *
+	 * @return number of pages checked
+	 */
+	public long getPages() {
+		return pages.sum();
+	}
+
+	/**
+	 * Returns the number of near-duplicate pages that were not indexed.
+	 *
+	 * @return number of near-duplicate pages
+	 */
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the number of words that were not indexed.
+	 *
+	 * @return number of words skipped
+	 */
+	public long getSkippedWords() {
+		return skippedWords.sum();
+	}
+
+	/**
+	 * Returns the number of links that were not followed.
+	 *
+	 * @return number of links skipped
+	 */
+	public long getSkippedLinks() {
+		return skippedLinks.sum();
+	}
+
+	/**
+	 * Looks for a signature within the distance, adding this one if none is found.
+	 *
+	 * @param signature the page signature
+	 * @return {@code true} if a near-duplicate signature was already present
+	 */
+	private synchronized boolean checkAndAdd(long signature) {
+		for (int i = 0; i < bands.size(); i++) {
+			List<Long> candidates = bands.get(i).get(band(signature, i));
+			if (candidates != null) {
+				for (long candidate : candidates) {
+					if (Long.bitCount(candidate ^ signature) <= distance) {
+						return true;
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < bands.size(); i++) {
+			bands.get(i).computeIfAbsent(band(signature, i), key -> new ArrayList<>(1)).add(signature);
+		}
+		return false;
+	}
+
+	/**
+	 * Extracts the bits of a band from the signature.
+	 *
+	 * @param signature the page signature
+	 * @param band      which band to extract
+	 * @return the band bits
+	 */
+	private long band(long signature, int band) {
+		long mask = bandWidth[band] == 64 ? -1L : (1L << bandWidth[band]) - 1;
+		return (signature >>> bandStart[band]) & mask;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d of %d pages near-duplicates, %d words not indexed, %d links not followed",
+				getDuplicates(), getPages(), getSkippedWords(), getSkippedLinks());
+	}
+}
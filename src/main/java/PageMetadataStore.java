@@ -0,0 +1,254 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe store of what the crawler knows about each page it fetched: the
+ * validators the server sent, a hash of the html and the links found on the
+ * page. A recrawl uses the validators to make conditional requests and the hash
+ * to notice pages that did not change even when the server ignores them, and
+ * follows the stored links of unchanged pages without parsing them again.
+ *
+ * @author dionfeng
+ *
+ */
+public class PageMetadataStore {
+	/** Marks the start of a metadata file. */
+	private static final int MAGIC = 0x50414745;
+
+	/** Version of the metadata format. */
+	private static final int VERSION = 1;
+
+	/** Metadata by normalized url. */
+	private final ConcurrentHashMap<String, PageMetadata> pages;
+
+	/**
+	 * Initializes an empty store.
+	 */
+	public PageMetadataStore() {
+		this.pages = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the metadata of the page.
+	 *
+	 * @param url the normalized url
+	 * @return the metadata, or {@code null} if the page was never fetched
+	 */
+	public PageMetadata get(String url) {
+		return pages.get(url);
+	}
+
+	/**
+	 * Stores the metadata of the page, replacing any older metadata.
+	 *
+	 * @param url      the normalized url
+	 * @param metadata the metadata of the latest fetch
+	 */
+	public void put(String url, PageMetadata metadata) {
+		pages.put(url, metadata);
+	}
+
+	/**
+	 * Forgets the pages.
+	 *
+	 * @param urls the normalized urls to forget
+	 */
+	public void removeAll(Collection<String> urls) {
+		for (String url : urls) {
+			pages.remove(url);
+		}
+	}
+
+	/**
+	 * Returns the urls of every page in the store.
+	 *
+	 * @return an unmodifiable view of the urls
+	 */
+	public Collection<String> getUrls() {
+		return Collections.unmodifiableCollection(pages.keySet());
+	}
+
+	/**
+	 * Returns the number of pages in the store.
+	 *
+	 * @return number of pages
+	 */
+	public int size() {
+		return pages.size();
+	}
+
+	/**
+	 * Writes the store to the path, through a temporary file so a crash never
+	 * leaves a partial file behind.
+	 *
+	 * @param path location to store the metadata
+	 * @throws IOException if unable to write
+	 */
+	public void write(Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			List<Map.Entry<String, PageMetadata>> entries = new ArrayList<>(pages.entrySet());
+			out.writeInt(entries.size());
+			for (var entry : entries) {
+				PageMetadata page = entry.getValue();
+				out.writeUTF(entry.getKey());
+				writeNullable(page.getEtag(), out);
+				writeNullable(page.getLastModified(), out);
+				out.writeLong(page.getHash());
+				out.writeInt(page.getLinks().size());
+				for (String link : page.getLinks()) {
+					out.writeUTF(link);
+				}
+			}
+		}
+
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the metadata stored at the path to this store.
+	 *
+	 * @param path location of the metadata
+	 * @throws IOException if unable to read or the file is not page metadata
+	 */
+	public void read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not page metadata: " + path);
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String url = in.readUTF();
+				String etag = readNullable(in);
+				String lastModified = readNullable(in);
+				long hash = in.readLong();
+
+				int linkCount = in.readInt();
+				List<String> links = new ArrayList<>(linkCount);
+				for (int j = 0; j < linkCount; j++) {
+					links.add(in.readUTF());
+				}
+
+				pages.put(url, new PageMetadata(etag, lastModified, hash, links));
+			}
+		}
+	}
+
+	/**
+	 * Writes a string that may be {@code null}.
+	 *
+	 * @param value the string or {@code null}
+	 * @param out   the stream to write to
+	 * @throws IOException if unable to write
+	 */
+	private static void writeNullable(String value, DataOutputStream out) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeNullable(String, DataOutputStream)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the string or {@code null}
+	 * @throws IOException if unable to read
+	 */
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		return pages.size() + " pages";
+	}
+
+	/**
+	 * What is known about a page from its latest fetch. Immutable.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class PageMetadata {
+		/** The entity tag the server sent, or {@code null}. */
+		private final String etag;
+
+		/** The last modified date the server sent, or {@code null}. */
+		private final String lastModified;
+
+		/** Fingerprint of the html. */
+		private final long hash;
+
+		/** Absolute links found on the page. */
+		private final List<String> links;
+
+		/**
+		 * Initializes the metadata of a fetch.
+		 *
+		 * @param etag         the entity tag, or {@code null}
+		 * @param lastModified the last modified date, or {@code null}
+		 * @param hash         fingerprint of the html
+		 * @param links        absolute links found on the page
+		 */
+		public PageMetadata(String etag, String lastModified, long hash, List<String> links) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.links = List.copyOf(links);
+		}
+
+		/**
+		 * Returns the entity tag the server sent.
+		 *
+		 * @return the entity tag, or {@code null}
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Returns the last modified date the server sent.
+		 *
+		 * @return the last modified date, or {@code null}
+		 */
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns the fingerprint of the html.
+		 *
+		 * @return the html fingerprint
+		 */
+		public long getHash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the links found on the page.
+		 *
+		 * @return an unmodifiable list of absolute links
+		 */
+		public List<String> getLinks() {
+			return links;
+		}
+	}
+}
@@ -1,4 +1,19 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
@@ -48,8 +63,353 @@ public interface ParseUtils {
 	 * @see #parse(String)
 	 */
 	public static String[] parse(String text) {
-		return split(clean(text));
+		List<String> words = new ArrayList<>();
+		new Tokenizer().tokenize(text, words);
+		return words.toArray(new String[0]);
 	}
 
+	/**
+	 * Parses the text into clean words, passing each word to the consumer in
+	 * order. Gives the same words as {@link #parse(String)} without building an
+	 * array.
+	 *
+	 * @param text  the text to clean and split
+	 * @param words receives each clean word
+	 *
+	 * @see Tokenizer
+	 */
+	public static void parse(CharSequence text, Consumer<String> words) {
+		new Tokenizer().tokenize(text, words);
+	}
+
+	/**
+	 * Hand-written version of {@link #split(String)} applied to
+	 * {@link #clean(String)} that scans the text once. Runs of ASCII letters are
+	 * lowercased straight into a reusable buffer without normalizing; only words
+	 * with other characters are normalized and filtered the slow way. Files can be
+	 * tokenized straight from their memory-mapped UTF-8 bytes, giving the same
+	 * words as parsing each line, with only the words holding non-ASCII bytes
+	 * decoded. Not thread-safe, so each thread should use its own tokenizer.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class Tokenizer {
+		/** Whether the default locale lowercases ASCII letters to ASCII letters. */
+		private static final boolean ASCII_CASE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase()
+				.equals("abcdefghijklmnopqrstuvwxyz");
+
+		/** Most bytes of a file mapped at once. */
+		private static final int MAP_SIZE = 1 << 30;
+
+		/** Reusable buffer for the letters of an ASCII word. */
+		private char[] buffer;
+
+		/** Reusable buffer for the letters of any other word. */
+		private final StringBuilder letters;
+
+		/** Decodes words holding non-ASCII bytes, failing on malformed input. */
+		private final CharsetDecoder decoder;
+
+		/** Whether no word of the current line was passed on yet. */
+		private boolean first;
+
+		/** Whether the current line starts with a space {@code strip()} keeps. */
+		private boolean leading;
+
+		/** Whether any space was seen on the current line. */
+		private boolean spaced;
+
+		/**
+		 * Initializes a tokenizer.
+		 */
+		public Tokenizer() {
+			this.buffer = new char[32];
+			this.letters = new StringBuilder();
+			this.decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+			newLine();
+		}
+
+		/**
+		 * Splits the text into clean words, passing each word to the consumer in
+		 * order.
+		 *
+		 * @param text  the text to clean and split
+		 * @param words receives each clean word
+		 */
+		public void tokenize(CharSequence text, Consumer<String> words) {
+			newLine();
+			scan(text, words);
+		}
+
+		/**
+		 * Splits the text into clean words, adding each word to the list.
+		 *
+		 * @param text  the text to clean and split
+		 * @param words list to add the clean words to
+		 */
+		public void tokenize(CharSequence text, List<String> words) {
+			tokenize(text, (Consumer<String>) words::add);
+		}
+
+		/**
+		 * Splits a UTF-8 file into clean words, passing each word to the consumer in
+		 * order. The file is memory-mapped and scanned as bytes, giving the same
+		 * words as parsing each line read with a {@link java.io.BufferedReader}.
+		 *
+		 * @param path  the UTF-8 file to clean and split
+		 * @param words receives each clean word
+		 * @throws IOException if unable to read the file or it is not valid UTF-8
+		 */
+		public void tokenize(Path path, Consumer<String> words) throws IOException {
+			tokenize(path, 0, Files.size(path), words);
+		}
+
+		/**
+		 * Splits part of a UTF-8 file into clean words, passing each word to the
+		 * consumer in order. The part must start at the beginning of the file or right
+		 * after an ASCII space, and end right after an ASCII space or at the end of the
+		 * file, so it never splits a word or character. A part starting in the middle
+		 * of a line gives the same non-empty words it would as part of the whole line.
+		 *
+		 * @param path  the UTF-8 file to clean and split
+		 * @param start offset of the first byte to tokenize
+		 * @param end   offset after the last byte to tokenize
+		 * @param words receives each clean word
+		 * @throws IOException if unable to read the file or it is not valid UTF-8
+		 */
+		public void tokenize(Path path, long start, long end, Consumer<String> words) throws IOException {
+			newLine();
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				end = Math.min(end, channel.size());
+				long position = start;
 
+				if (position > 0) {
+					ByteBuffer before = ByteBuffer.allocate(1);
+					channel.read(before, position - 1);
+					if (before.get(0) != '\n' && before.get(0) != '\r') {
+						first = false;
+						spaced = true;
+					}
+				}
+
+				while (position < end) {
+					MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAP_SIZE, end - position));
+					if (position + bytes.limit() < end) {
+						// end the region after its last space so no word is split between regions
+						int limit = bytes.limit();
+						while (limit > 0 && !isSpace(bytes.get(limit - 1))) {
+							limit--;
+						}
+						if (limit > 0) {
+							bytes.limit(limit);
+						}
+					}
+
+					scan(bytes, words);
+					position += bytes.limit();
+				}
+			}
+		}
+
+		/**
+		 * Tests whether the byte is an ASCII space. Every byte of a multi-byte UTF-8
+		 * character is negative, so a file can be split after an ASCII space without
+		 * splitting a word or character.
+		 *
+		 * @param b the byte to test
+		 * @return {@code true} if the byte separates words
+		 */
+		public static boolean isSpace(byte b) {
+			return b == ' ' || b >= 0x9 && b <= 0xD;
+		}
+
+		/**
+		 * Starts a new line, so the next word is treated as the first of its line.
+		 */
+		private void newLine() {
+			first = true;
+			leading = false;
+			spaced = false;
+		}
+
+		/**
+		 * Passes a word to the consumer, preceded by the empty word
+		 * {@link ParseUtils#split(String)} gives for some leading spaces.
+		 *
+		 * @param word  the clean word, or {@code null} if there is none
+		 * @param words receives each clean word
+		 */
+		private void emit(String word, Consumer<String> words) {
+			if (word != null) {
+				if (first && leading) {
+					words.accept("");
+				}
+				first = false;
+				words.accept(word);
+			}
+		}
+
+		/**
+		 * Splits text that is part of the current line into clean words.
+		 *
+		 * @param text  the text to clean and split
+		 * @param words receives each clean word
+		 */
+		private void scan(CharSequence text, Consumer<String> words) {
+			int length = text.length();
+			int i = 0;
+
+			while (i < length) {
+				char c = text.charAt(i);
+				if (isSpace(c)) {
+					// strip() keeps spaces like U+00A0, so split() starts with an empty word
+					leading |= first && !Character.isWhitespace(c);
+					spaced = true;
+					i++;
+					continue;
+				}
+
+				int start = i;
+				int size = 0;
+				boolean ascii = ASCII_CASE;
+				for (; i < length && !isSpace(c = text.charAt(i)); i++) {
+					if (c >= 0x80) {
+						ascii = false;
+					} else if (ascii && isLetter(c)) {
+						size = append(size, c);
+					}
+				}
+
+				if (ascii) {
+					emit(size == 0 ? null : new String(buffer, 0, size), words);
+				} else {
+					emit(slowWord(text, start, i, !spaced), words);
+				}
+			}
+		}
+
+		/**
+		 * Splits UTF-8 bytes into clean words, starting a new line at every line
+		 * break. Words of ASCII bytes are never decoded.
+		 *
+		 * @param bytes the bytes between their position and limit
+		 * @param words receives each clean word
+		 * @throws CharacterCodingException if the bytes are not valid UTF-8
+		 */
+		private void scan(ByteBuffer bytes, Consumer<String> words) throws CharacterCodingException {
+			int length = bytes.limit();
+			int i = bytes.position();
+
+			while (i < length) {
+				byte b = bytes.get(i);
+				if (isSpace(b)) {
+					if (b == '\n' || b == '\r') {
+						newLine();
+					} else {
+						spaced = true;
+					}
+					i++;
+					continue;
+				}
+
+				int start = i;
+				int size = 0;
+				boolean ascii = ASCII_CASE;
+				for (; i < length && !isSpace(b = bytes.get(i)); i++) {
+					if (b < 0) {
+						ascii = false;
+					} else if (ascii && isLetter((char) b)) {
+						size = append(size, (char) b);
+					}
+				}
+
+				if (ascii) {
+					emit(size == 0 ? null : new String(buffer, 0, size), words);
+				} else {
+					// non-ASCII spaces may still split the word, so scan it as text
+					scan(decoder.decode(bytes.slice(start, i - start)), words);
+				}
+			}
+		}
+
+		/**
+		 * Appends a lowercased ASCII letter to the word buffer.
+		 *
+		 * @param size number of letters in the buffer
+		 * @param c    the ASCII letter
+		 * @return the new number of letters in the buffer
+		 */
+		private int append(int size, char c) {
+			if (size == buffer.length) {
+				buffer = Arrays.copyOf(buffer, size * 2);
+			}
+			buffer[size] = (char) (c | 0x20);
+			return size + 1;
+		}
+
+		/**
+		 * Cleans a word that has characters outside ASCII, the same way
+		 * {@link ParseUtils#clean(String)} does.
+		 *
+		 * @param text  the text holding the word
+		 * @param start index of the first character of the word
+		 * @param end   index after the last character of the word
+		 * @param alone whether nothing comes before the word once cleaned
+		 * @return the clean word, or {@code null} if no letters are left
+		 */
+		private String slowWord(CharSequence text, int start, int end, boolean alone) {
+			String word = Normalizer.normalize(text.subSequence(start, end), Normalizer.Form.NFD);
+
+			letters.setLength(0);
+			for (int j = 0; j < word.length();) {
+				int codePoint = word.codePointAt(j);
+				if (Character.isAlphabetic(codePoint)) {
+					letters.appendCodePoint(codePoint);
+				}
+				j += Character.charCount(codePoint);
+			}
+
+			if (letters.length() == 0) {
+				return null;
+			}
+
+			if (!alone && letters.indexOf("\u03A3") >= 0) {
+				// the final sigma rule of toLowerCase() depends on what comes before the word
+				return letters.insert(0, ' ').toString().toLowerCase().substring(1);
+			}
+			return letters.toString().toLowerCase();
+		}
+
+		/**
+		 * Tests whether the character is an ASCII letter.
+		 *
+		 * @param c the character to test
+		 * @return {@code true} if the character is between a and z in either case
+		 */
+		private static boolean isLetter(char c) {
+			return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+		}
+
+		/**
+		 * Tests whether the character is whitespace as matched by
+		 * {@link ParseUtils#SPLIT_REGEX}.
+		 *
+		 * @param c the character to test
+		 * @return {@code true} if the character separates words
+		 */
+		private static boolean isSpace(char c) {
+			if (c < 0x80) {
+				return c == ' ' || c >= 0x9 && c <= 0xD;
+			}
+			if (c == 0x85) {
+				return true;
+			}
+			int type = Character.getType(c);
+			return type == Character.SPACE_SEPARATOR || type == Character.LINE_SEPARATOR
+					|| type == Character.PARAGRAPH_SEPARATOR;
+		}
+	}
 }
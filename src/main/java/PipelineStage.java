@@ -0,0 +1,189 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One stage of a processing pipeline: a {@link WorkQueue} with its own threads
+ * and a bounded number of tasks waiting or running. Submitting to a full stage
+ * blocks, so a slow stage pushes back on the stage feeding it instead of
+ * letting work pile up in memory.
+ *
+ * @author dionfeng
+ *
+ */
+public class PipelineStage {
+	/** Workers of this stage. */
+	private final WorkQueue workers;
+
+	/** Free slots for tasks waiting or running in this stage. */
+	private final Semaphore slots;
+
+	/** Most tasks waiting or running in this stage. */
+	private final int capacity;
+
+	/** Throughput of this stage. */
+	private final Metrics metrics;
+
+	/**
+	 * Starts a stage.
+	 *
+	 * @param name     name of the stage used in its metrics
+	 * @param threads  number of worker threads
+	 * @param capacity most tasks waiting or running before submitting blocks
+	 */
+	public PipelineStage(String name, int threads, int capacity) {
+		this.workers = new WorkQueue(Math.max(1, threads));
+		this.capacity = Math.max(1, capacity);
+		this.slots = new Semaphore(this.capacity);
+		this.metrics = new Metrics(name);
+	}
+
+	/**
+	 * Queues a task, waiting while the stage is full.
+	 *
+	 * @param task the task to run
+	 */
+	public void submit(Runnable task) {
+		long start = System.nanoTime();
+		slots.acquireUninterruptibly();
+		metrics.blocked.add(System.nanoTime() - start);
+
+		workers.execute(() -> {
+			long begin = System.nanoTime();
+			try {
+				task.run();
+			} finally {
+				metrics.record(System.nanoTime() - begin);
+				slots.release();
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of tasks waiting or running.
+	 *
+	 * @return tasks in this stage
+	 */
+	public int getBacklog() {
+		return capacity - slots.availablePermits();
+	}
+
+	/**
+	 * Returns the throughput of this stage.
+	 *
+	 * @return the stage metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Waits for every task to finish and stops the worker threads.
+	 */
+	public void join() {
+		workers.join();
+	}
+
+	@Override
+	public String toString() {
+		return metrics.toString();
+	}
+
+	/**
+	 * Thread-safe counters describing the work done by a stage.
+	 *
+	 * @author dionfeng
+	 *
+	 */
+	public static class Metrics {
+		/** Name of the stage. */
+		private final String name;
+
+		/** Number of tasks completed. */
+		private final LongAdder items;
+
+		/** Total time spent running tasks in nanoseconds. */
+		private final LongAdder busy;
+
+		/** Total time submitters waited for a free slot in nanoseconds. */
+		private final LongAdder blocked;
+
+		/** When the first task was recorded, or 0. */
+		private volatile long first;
+
+		/** When the last task was recorded. */
+		private volatile long last;
+
+		/**
+		 * Initializes all counters to zero.
+		 *
+		 * @param name name of the stage
+		 */
+		public Metrics(String name) {
+			this.name = name;
+			this.items = new LongAdder();
+			this.busy = new LongAdder();
+			this.blocked = new LongAdder();
+		}
+
+		/**
+		 * Records a completed task.
+		 *
+		 * @param nanos how long the task ran in nanoseconds
+		 */
+		public void record(long nanos) {
+			long now = System.nanoTime();
+			if (first == 0) {
+				first = now - nanos;
+			}
+			last = now;
+			items.increment();
+			busy.add(nanos);
+		}
+
+		/**
+		 * Returns the number of tasks completed.
+		 *
+		 * @return tasks completed
+		 */
+		public long getItems() {
+			return items.sum();
+		}
+
+		/**
+		 * Returns the average time a task ran.
+		 *
+		 * @return average milliseconds per task, or 0 if none ran
+		 */
+		public double getAverageMillis() {
+			long count = getItems();
+			return count == 0 ? 0 : (double) busy.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		/**
+		 * Returns how many tasks completed per second between the start of the first
+		 * and the end of the last.
+		 *
+		 * @return tasks per second, or 0 if none ran
+		 */
+		public double getThroughput() {
+			long elapsed = last - first;
+			return first == 0 || elapsed <= 0 ? 0 : getItems() / (elapsed / 1e9);
+		}
+
+		/**
+		 * Returns how long submitters waited for this stage to make room.
+		 *
+		 * @return milliseconds spent blocked on backpressure
+		 */
+		public long getBlockedMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(blocked.sum());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d items, %.1f items/s, %.2f ms/item, %d ms blocked", name, getItems(),
+					getThroughput(), getAverageMillis(), getBlockedMillis());
+		}
+	}
+}
@@ -0,0 +1,428 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merges index segments written by {@link IndexSnapshot} without loading them
+ * into memory. Every segment lists its words in sorted order, so a k-way merge
+ * reads each segment once from start to end and only keeps the postings of one
+ * word per segment in memory, plus the word count of every location.
+ *
+ * <p>
+ * At most {@link #MAX_FAN_IN} segments are open at once. Larger sets are first
+ * merged in groups into intermediate segments, so the number of open files
+ * stays bounded however many segments a build spills.
+ *
+ * @author dionfeng
+ *
+ */
+public class SegmentMerger {
+	/** Most segments merged at once. */
+	public static final int MAX_FAN_IN = 64;
+
+	/** Offset of the word total in a snapshot, after the magic and version. */
+	private static final int WORDS_OFFSET = 8;
+
+	/**
+	 * Merges the segments into a single segment.
+	 *
+	 * @param segments the segments to merge
+	 * @param output   location of the merged segment
+	 * @throws IOException if unable to read a segment or write the output
+	 */
+	public static void merge(List<Path> segments, Path output) throws IOException {
+		List<Path> merged = reduce(segments, output.resolveSibling(output.getFileName() + ".pass"));
+		try (SnapshotSink sink = new SnapshotSink(output)) {
+			merge(merged, sink);
+		} finally {
+			deleteIntermediate(segments, merged);
+		}
+	}
+
+	/**
+	 * Merges the segments into the JSON index and word counts, in the same format
+	 * as {@link InvertedIndex#writeJson(Path)} and
+	 * {@link InvertedIndex#writeCount(Path)}.
+	 *
+	 * @param segments the segments to merge
+	 * @param index    location of the JSON index, or {@code null} to skip it
+	 * @param counts   location of the JSON word counts, or {@code null} to skip
+	 *                 them
+	 * @throws IOException if unable to read a segment or write the output
+	 */
+	public static void writeJson(List<Path> segments, Path index, Path counts) throws IOException {
+		Path base = index != null ? index : counts;
+		if (base == null) {
+			return;
+		}
+
+		List<Path> merged = reduce(segments, base.toAbsolutePath().resolveSibling(base.getFileName() + ".pass"));
+		try (JsonSink sink = new JsonSink(index, counts)) {
+			merge(merged, sink);
+		} finally {
+			deleteIntermediate(segments, merged);
+		}
+	}
+
+	/**
+	 * Merges groups of segments until at most {@link #MAX_FAN_IN} are left.
+	 *
+	 * @param segments the segments to merge
+	 * @param prefix   prefix of the intermediate segment files
+	 * @return the segments left
+	 * @throws IOException if unable to merge a group
+	 */
+	private static List<Path> reduce(List<Path> segments, Path prefix) throws IOException {
+		List<Path> current = segments;
+		int pass = 0;
+
+		while (current.size() > MAX_FAN_IN) {
+			List<Path> next = new ArrayList<>();
+			for (int i = 0; i < current.size(); i += MAX_FAN_IN) {
+				List<Path> group = current.subList(i, Math.min(current.size(), i + MAX_FAN_IN));
+				Path output = prefix.resolveSibling(prefix.getFileName().toString() + pass + "-" + next.size());
+				try (SnapshotSink sink = new SnapshotSink(output)) {
+					merge(group, sink);
+				}
+				next.add(output);
+			}
+
+			deleteIntermediate(segments, current);
+			current = next;
+			pass++;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Deletes intermediate segments, keeping the original ones.
+	 *
+	 * @param originals the segments passed in by the caller
+	 * @param merged    the segments to delete if they are intermediate
+	 * @throws IOException if unable to delete
+	 */
+	private static void deleteIntermediate(List<Path> originals, List<Path> merged) throws IOException {
+		if (merged != originals) {
+			for (Path segment : merged) {
+				Files.deleteIfExists(segment);
+			}
+		}
+	}
+
+	/**
+	 * Merges the segments word by word into the sink.
+	 *
+	 * @param segments the segments to merge
+	 * @param sink     receives every word in order, then the word counts
+	 * @throws IOException if unable to read a segment or write to the sink
+	 */
+	private static void merge(List<Path> segments, Sink sink) throws IOException {
+		List<SegmentReader> readers = new ArrayList<>();
+		PriorityQueue<SegmentReader> queue = new PriorityQueue<>((a, b) -> a.word.compareTo(b.word));
+		TreeMap<String, Integer> counts = new TreeMap<>();
+
+		try {
+			for (Path segment : segments) {
+				SegmentReader reader = new SegmentReader(segment);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+
+			while (!queue.isEmpty()) {
+				SegmentReader first = queue.poll();
+				String word = first.word;
+				TreeMap<String, TreeSet<Integer>> locations = first.locations;
+				advance(first, queue);
+
+				while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+					SegmentReader same = queue.poll();
+					for (var location : same.locations.entrySet()) {
+						locations.merge(location.getKey(), location.getValue(), (a, b) -> {
+							a.addAll(b);
+							return a;
+						});
+					}
+					advance(same, queue);
+				}
+
+				sink.word(word, locations);
+			}
+
+			for (SegmentReader reader : readers) {
+				reader.readCounts(counts);
+			}
+			sink.counts(counts);
+		} finally {
+			for (SegmentReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves a reader to its next word, putting it back in the queue unless it has
+	 * no words left.
+	 *
+	 * @param reader the reader
+	 * @param queue  the queue of readers by word
+	 * @throws IOException if unable to read
+	 */
+	private static void advance(SegmentReader reader, PriorityQueue<SegmentReader> queue) throws IOException {
+		if (reader.next()) {
+			queue.add(reader);
+		}
+	}
+
+	/**
+	 * Reads the words of a segment one at a time.
+	 */
+	private static class SegmentReader implements Closeable {
+		/** Stream of the segment. */
+		private final DataInputStream in;
+
+		/** Number of words not read yet. */
+		private int remaining;
+
+		/** The current word. */
+		private String word;
+
+		/** Postings of the current word. */
+		private TreeMap<String, TreeSet<Integer>> locations;
+
+		/**
+		 * Opens a segment.
+		 *
+		 * @param path the segment
+		 * @throws IOException if unable to read or the file is not a snapshot
+		 */
+		public SegmentReader(Path path) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+			try {
+				if (in.readInt() != IndexSnapshot.MAGIC || in.readInt() != IndexSnapshot.VERSION) {
+					throw new IOException("Not an index snapshot: " + path);
+				}
+				this.remaining = in.readInt();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the next word and its postings.
+		 *
+		 * @return {@code false} if the segment has no words left
+		 * @throws IOException if unable to read
+		 */
+		public boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+
+			word = in.readUTF();
+			locations = new TreeMap<>();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				TreeSet<Integer> positions = new TreeSet<>();
+				String location = in.readUTF();
+				IndexSnapshot.readPositions(in, positions);
+				locations.put(location, positions);
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the word counts that follow the words.
+		 *
+		 * @param counts location to word count map to add to
+		 * @throws IOException if unable to read
+		 */
+		public void readCounts(Map<String, Integer> counts) throws IOException {
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				counts.merge(in.readUTF(), in.readInt(), Math::max);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Receives the merged words in sorted order, then the word counts.
+	 */
+	private interface Sink extends Closeable {
+		/**
+		 * Receives a word and its postings.
+		 *
+		 * @param word      the word
+		 * @param locations location to positions map of the word
+		 * @throws IOException if unable to write
+		 */
+		void word(String word, TreeMap<String, TreeSet<Integer>> locations) throws IOException;
+
+		/**
+		 * Receives the word count of every location.
+		 *
+		 * @param counts location to word count map
+		 * @throws IOException if unable to write
+		 */
+		void counts(TreeMap<String, Integer> counts) throws IOException;
+	}
+
+	/**
+	 * Writes the merged words as a snapshot. The word total is only known at the
+	 * end, so it is written into the header once the words are done.
+	 */
+	private static class SnapshotSink implements Sink {
+		/** The snapshot to write. */
+		private final Path path;
+
+		/** Temporary file written first. */
+		private final Path temp;
+
+		/** Stream of the temporary file. */
+		private final DataOutputStream out;
+
+		/** Number of words written. */
+		private int words;
+
+		/** Whether the counts were written and the snapshot is complete. */
+		private boolean complete;
+
+		/**
+		 * Starts writing a snapshot.
+		 *
+		 * @param path location of the snapshot
+		 * @throws IOException if unable to write
+		 */
+		public SnapshotSink(Path path) throws IOException {
+			this.path = path;
+			this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+			out.writeInt(IndexSnapshot.MAGIC);
+			out.writeInt(IndexSnapshot.VERSION);
+			out.writeInt(0);
+		}
+
+		@Override
+		public void word(String word, TreeMap<String, TreeSet<Integer>> locations) throws IOException {
+			out.writeUTF(word);
+			out.writeInt(locations.size());
+			for (var location : locations.entrySet()) {
+				out.writeUTF(location.getKey());
+				IndexSnapshot.writePositions(location.getValue(), out);
+			}
+			words++;
+		}
+
+		@Override
+		public void counts(TreeMap<String, Integer> counts) throws IOException {
+			out.writeInt(counts.size());
+			for (var count : counts.entrySet()) {
+				out.writeUTF(count.getKey());
+				out.writeInt(count.getValue());
+			}
+			complete = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			if (!complete) {
+				Files.deleteIfExists(temp);
+				return;
+			}
+
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer total = ByteBuffer.allocate(Integer.BYTES).putInt(0, words);
+				channel.write(total, WORDS_OFFSET);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Writes the merged words as the JSON index and the counts as JSON word
+	 * counts.
+	 */
+	private static class JsonSink implements Sink {
+		/** Writer of the JSON index, or {@code null} to skip it. */
+		private final Writer writer;
+
+		/** Location of the JSON word counts, or {@code null} to skip them. */
+		private final Path counts;
+
+		/** Whether no word was written yet. */
+		private boolean first;
+
+		/**
+		 * Starts writing the JSON index.
+		 *
+		 * @param index  location of the JSON index, or {@code null} to skip it
+		 * @param counts location of the JSON word counts, or {@code null} to skip
+		 *               them
+		 * @throws IOException if unable to write
+		 */
+		public JsonSink(Path index, Path counts) throws IOException {
+			this.writer = index == null ? null : Files.newBufferedWriter(index, StandardCharsets.UTF_8);
+			this.counts = counts;
+			this.first = true;
+			if (writer != null) {
+				writer.write("{");
+			}
+		}
+
+		@Override
+		public void word(String word, TreeMap<String, TreeSet<Integer>> locations) throws IOException {
+			if (writer == null) {
+				return;
+			}
+
+			writer.write(first ? "\n" : ",\n");
+			JsonWriter.quote(word, writer, 1);
+			writer.write(": ");
+			JsonWriter.asNestedArray(locations, writer, 1);
+			first = false;
+		}
+
+		@Override
+		public void counts(TreeMap<String, Integer> counts) throws IOException {
+			if (this.counts != null) {
+				JsonWriter.asObject(counts, this.counts);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (writer != null) {
+				try (Writer closing = writer) {
+					closing.write("\n}");
+				}
+			}
+		}
+	}
+}
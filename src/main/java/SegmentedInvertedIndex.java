@@ -0,0 +1,952 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Thread-safe inverted index made of immutable segments plus a small mutable
+ * buffer, for cheap continuous indexing while the index is being searched.
+ *
+ * <p>
+ * New postings go to the buffer, which is the index inherited from
+ * {@link ThreadSafeInvertedIndex}. Once it holds the buffer size in word
+ * positions, the buffer becomes a new segment and starts over empty. A
+ * background thread merges segments with a tiered policy: segments are grouped
+ * in tiers by size, each tier {@link #MERGE_FACTOR} times larger than the one
+ * below, and as soon as a tier holds {@link #MERGE_FACTOR} segments they are
+ * merged into one segment of the next tier. Segments are never changed once
+ * created, so a merge is built without holding any lock and only swapped in at
+ * the end.
+ *
+ * <p>
+ * Searches count the matches of every segment and the buffer and combine them,
+ * so they see every posting whatever segment it is in. Methods that read single
+ * words or locations first merge everything into one segment, as do the
+ * methods that write the index out.
+ *
+ * <p>
+ * Every location of a segment has a document number, and a segment keeps a
+ * bitset of its deleted documents. Deleting a location only sets its bit in
+ * each segment, without copying anything or blocking searches, and searches
+ * skip deleted documents. Merges copy only the live documents, which reclaims
+ * the space, and a segment that is mostly deleted is rewritten on its own.
+ *
+ * @author dionfeng
+ *
+ */
+public class SegmentedInvertedIndex extends ThreadSafeInvertedIndex implements Closeable {
+	/** The default number of word positions kept in the buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 100_000;
+
+	/** Number of segments of a tier merged at once, and the ratio of tier sizes. */
+	public static final int MERGE_FACTOR = 4;
+
+	/** Percentage of deleted documents above which a segment is rewritten. */
+	public static final int MAX_DELETED = 50;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Guards the list of segments and the buffer as a whole. Writers to the buffer
+	 * and searchers share it; flushes, merges and removals take it alone.
+	 */
+	private final ReadWriteLock segmentLock;
+
+	/** Live segments, replaced as a whole whenever it changes. */
+	private volatile List<Segment> segments;
+
+	/** Number of word positions in the buffer that flush it to a segment. */
+	private final long bufferSize;
+
+	/** Number of word positions added to the buffer since it was last flushed. */
+	private long buffered;
+
+	/** Thread merging segments in the background. */
+	private final Thread compactor;
+
+	/** Wakes up the compactor when segments change. */
+	private final Object compaction;
+
+	/** Whether the compactor should stop. */
+	private boolean closed;
+
+	/** Number of times the buffer was flushed to a segment. */
+	private int flushes;
+
+	/** Number of segment merges. */
+	private int merges;
+
+	/**
+	 * Initializes an empty index that flushes its buffer every
+	 * {@link #DEFAULT_BUFFER_SIZE} word positions.
+	 */
+	public SegmentedInvertedIndex() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Initializes an empty index and starts merging segments in the background.
+	 *
+	 * @param bufferSize number of word positions in the buffer that flush it to a
+	 *                   segment
+	 */
+	public SegmentedInvertedIndex(int bufferSize) {
+		super();
+		this.segmentLock = new ReadWriteLock();
+		this.segments = List.of();
+		this.bufferSize = Math.max(1, bufferSize);
+		this.compaction = new Object();
+		this.compactor = new Thread(this::compact, "segment-compactor");
+		this.compactor.setDaemon(true);
+		this.compactor.start();
+	}
+
+	@Override
+	public void add(String word, String location, int position) {
+		segmentLock.readLock().lock();
+		try {
+			super.add(word, location, position);
+			buffered(1);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void addWord(List<String> words, String directory) {
+		segmentLock.readLock().lock();
+		try {
+			super.addWord(words, directory);
+			buffered(words.size());
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void addAll(InvertedIndex other) {
+		segmentLock.readLock().lock();
+		try {
+			super.addAll(other);
+			buffered(postings(other));
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void addAll(InvertedIndex other, int offset) {
+		segmentLock.readLock().lock();
+		try {
+			super.addAll(other, offset);
+			buffered(postings(other));
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void copyAll(InvertedIndex other) {
+		segmentLock.readLock().lock();
+		try {
+			super.copyAll(other);
+			buffered(postings(other));
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	/**
+	 * Delete everything indexed at the location. The location is marked deleted in
+	 * every segment holding it, a constant time update per segment that never
+	 * waits for searches, and removed from the buffer if it is there.
+	 *
+	 * @param location location to delete
+	 */
+	public void delete(String location) {
+		segmentLock.readLock().lock();
+		try {
+			deleteLocked(location);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace everything indexed at the location with the contents of another
+	 * index, which should only contain that location. The old documents are
+	 * deleted first, so a search running at the same time may miss the location,
+	 * but never counts it twice. Use {@link #replaceLocation(String, InvertedIndex)}
+	 * where searches must never miss it.
+	 *
+	 * @param location location to replace
+	 * @param other    locally built index of the new contents of the location
+	 */
+	public void update(String location, InvertedIndex other) {
+		segmentLock.readLock().lock();
+		try {
+			deleteLocked(location);
+			super.addAll(other);
+			buffered(postings(other));
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	@Override
+	public void removeLocations(Collection<String> locations) {
+		segmentLock.readLock().lock();
+		try {
+			for (String location : locations) {
+				deleteSegments(location);
+			}
+			super.removeLocations(locations);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeDirectory(Path directory) {
+		segmentLock.readLock().lock();
+		try {
+			for (Segment segment : segments) {
+				for (String location : segment.docs.keySet()) {
+					if (Path.of(location).startsWith(directory)) {
+						segment.delete(location);
+					}
+				}
+			}
+			super.removeDirectory(directory);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace everything indexed at the location in a single update, like
+	 * {@link #update(String, InvertedIndex)}, but holding the segment write lock so
+	 * searches never see the location half replaced
+	 *
+	 * @param location location to replace
+	 * @param other    locally built index of the new contents of the location
+	 */
+	@Override
+	public void replaceLocation(String location, InvertedIndex other) {
+		segmentLock.writeLock().lock();
+		try {
+			deleteLocked(location);
+			super.addAll(other);
+			buffered(postings(other));
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		flushIfFull();
+	}
+
+	/**
+	 * Deletes the location from every segment and the buffer. Called while holding
+	 * the segment lock.
+	 *
+	 * @param location location to delete
+	 */
+	private void deleteLocked(String location) {
+		deleteSegments(location);
+		if (super.getCount(location) > 0) {
+			super.removeLocations(List.of(location));
+		}
+	}
+
+	/**
+	 * Marks the location deleted in every segment holding it. Called while holding
+	 * the segment lock.
+	 *
+	 * @param location location to delete
+	 */
+	private void deleteSegments(String location) {
+		for (Segment segment : segments) {
+			segment.delete(location);
+		}
+	}
+
+	@Override
+	public void clear() {
+		segmentLock.writeLock().lock();
+		try {
+			super.clear();
+			segments = List.of();
+			synchronized (this) {
+				buffered = 0;
+			}
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void countMatches(Set<String> wordQuery, boolean exactSearch, Map<String, Integer> counts) {
+		segmentLock.readLock().lock();
+		try {
+			super.countMatches(wordQuery, exactSearch, counts);
+			for (Segment segment : segments) {
+				segment.countMatches(wordQuery, exactSearch, counts);
+			}
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<SearchQuery> exactSearch(Set<String> wordQuery) {
+		return searchSegments(wordQuery, true);
+	}
+
+	@Override
+	public List<SearchQuery> partialSearch(Set<String> wordQuery) {
+		return searchSegments(wordQuery, false);
+	}
+
+	/**
+	 * Search the buffer and every segment, adding up the matches of each location
+	 * before scoring it against its total word count
+	 *
+	 * @param wordQuery   set of query words
+	 * @param exactSearch whether words must match exactly instead of by prefix
+	 * @return sorted search results
+	 */
+	private List<SearchQuery> searchSegments(Set<String> wordQuery, boolean exactSearch) {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		List<SearchQuery> result = new ArrayList<>();
+
+		segmentLock.readLock().lock();
+		try {
+			List<Segment> current = segments;
+			super.countMatches(wordQuery, exactSearch, counts);
+			for (Segment segment : current) {
+				segment.countMatches(wordQuery, exactSearch, counts);
+			}
+
+			for (var count : counts.entrySet()) {
+				result.add(new SearchQuery(count.getKey(), count.getValue(), total(count.getKey(), current)));
+			}
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Returns the number of words of a location, the largest of every segment
+	 * where it is not deleted and the buffer. Called while holding the segment
+	 * lock.
+	 *
+	 * @param location the location
+	 * @param current  the live segments
+	 * @return number of words of the location
+	 */
+	private int total(String location, List<Segment> current) {
+		int total = super.getCount(location);
+		for (Segment segment : current) {
+			if (segment.isLive(location)) {
+				total = Math.max(total, segment.index.getCount(location));
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int getCount(String fileLocation) {
+		segmentLock.readLock().lock();
+		try {
+			return total(fileLocation, segments);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsWord(String key) {
+		segmentLock.readLock().lock();
+		try {
+			if (super.containsWord(key)) {
+				return true;
+			}
+			for (Segment segment : segments) {
+				if (segment.containsWord(key)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<String> getCountLocations() {
+		return merged().getCountLocations();
+	}
+
+	@Override
+	public Collection<String> get() {
+		return merged().get();
+	}
+
+	@Override
+	public Collection<String> getLocations(String word) {
+		return merged().getLocations(word);
+	}
+
+	@Override
+	public Collection<Integer> getIndex(String word, String location) {
+		return merged().getIndex(word, location);
+	}
+
+	@Override
+	public boolean containsLocation(String word, String location) {
+		return merged().containsLocation(word, location);
+	}
+
+	@Override
+	public boolean containsPosition(String word, String location, int position) {
+		return merged().containsPosition(word, location, position);
+	}
+
+	@Override
+	public int getWordSize() {
+		return merged().getWordSize();
+	}
+
+	@Override
+	public int getLocationSize(String word) {
+		return merged().getLocationSize(word);
+	}
+
+	@Override
+	public int getPositionSize(String word, String fileLocation) {
+		return merged().getPositionSize(word, fileLocation);
+	}
+
+	@Override
+	public void writeJson(Path path) throws IOException {
+		merged().writeJson(path);
+	}
+
+	@Override
+	public void writeCount(Path path) throws IOException {
+		merged().writeCount(path);
+	}
+
+	@Override
+	public void writeSnapshot(Path path) throws IOException {
+		merged().writeSnapshot(path);
+	}
+
+	@Override
+	public void spill(Path path) throws IOException {
+		segmentLock.writeLock().lock();
+		try {
+			merged().writeSnapshot(path);
+			clear();
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void readSnapshot(Path path) throws IOException {
+		InvertedIndex loaded = new InvertedIndex();
+		loaded.readSnapshot(path);
+
+		segmentLock.writeLock().lock();
+		try {
+			addSegment(new Segment(loaded, postings(loaded)));
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String printWordCount() {
+		return merged().printWordCount();
+	}
+
+	@Override
+	public String toString() {
+		return merged().toString();
+	}
+
+	/**
+	 * Flush the buffer to a new segment, even if it is not full
+	 */
+	public void flush() {
+		segmentLock.writeLock().lock();
+		try {
+			flushBuffer();
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Flush the buffer and merge every segment into one, dropping deleted
+	 * documents, and return it. The segment is never changed afterwards, so it can
+	 * be read without any lock.
+	 *
+	 * @return a segment holding the whole index
+	 */
+	public InvertedIndex merged() {
+		segmentLock.writeLock().lock();
+		try {
+			flushBuffer();
+			List<Segment> current = segments;
+			if (current.isEmpty()) {
+				return new InvertedIndex();
+			}
+			if (current.size() > 1 || current.get(0).deletions.get() > 0) {
+				Segment merged = merge(current);
+				segments = List.of(merged);
+				synchronized (this) {
+					merges++;
+				}
+			}
+			return segments.get(0).index;
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of live segments, not counting the buffer.
+	 *
+	 * @return number of segments
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the number of times the buffer was flushed to a segment.
+	 *
+	 * @return number of flushes
+	 */
+	public synchronized int getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Returns the number of segment merges.
+	 *
+	 * @return number of merges
+	 */
+	public synchronized int getMerges() {
+		return merges;
+	}
+
+	/**
+	 * Returns the number of deleted documents not reclaimed by a merge yet.
+	 *
+	 * @return number of deleted documents in the live segments
+	 */
+	public int getDeletedCount() {
+		int deleted = 0;
+		for (Segment segment : segments) {
+			deleted += segment.deletions.get();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Stops merging segments in the background.
+	 */
+	@Override
+	public void close() {
+		synchronized (compaction) {
+			closed = true;
+			compaction.notifyAll();
+		}
+	}
+
+	/**
+	 * Counts word positions added to the buffer. Called while holding the segment
+	 * read lock, so a flush never misses a count.
+	 *
+	 * @param positions number of word positions added
+	 */
+	private synchronized void buffered(long positions) {
+		buffered += positions;
+	}
+
+	/**
+	 * Flushes the buffer if it holds the buffer size in word positions. Called
+	 * without holding the segment lock.
+	 */
+	private void flushIfFull() {
+		boolean full;
+		synchronized (this) {
+			full = buffered >= bufferSize;
+		}
+		if (full) {
+			segmentLock.writeLock().lock();
+			try {
+				synchronized (this) {
+					full = buffered >= bufferSize;
+				}
+				if (full) {
+					flushBuffer();
+				}
+			} finally {
+				segmentLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Moves the buffer to a new segment. The postings of the buffer are handed
+	 * over to the segment rather than copied, and the buffer starts over empty.
+	 * Called while holding the segment write lock.
+	 */
+	private void flushBuffer() {
+		long positions;
+		synchronized (this) {
+			positions = buffered;
+			buffered = 0;
+		}
+
+		InvertedIndex drained = new InvertedIndex();
+		drained.addAll(this);
+		if (drained.getCountLocations().isEmpty() && drained.getWordSize() == 0) {
+			return;
+		}
+		super.clear();
+
+		addSegment(new Segment(drained, positions));
+		synchronized (this) {
+			flushes++;
+		}
+		log.debug("Flushed {} word positions to segment {}", positions, segments.size());
+	}
+
+	/**
+	 * Adds a segment and wakes up the compactor. Called while holding the segment
+	 * write lock.
+	 *
+	 * @param segment the new segment
+	 */
+	private void addSegment(Segment segment) {
+		List<Segment> next = new ArrayList<>(segments);
+		next.add(segment);
+		segments = List.copyOf(next);
+
+		synchronized (compaction) {
+			compaction.notifyAll();
+		}
+	}
+
+	/**
+	 * Merges segments in the background until closed.
+	 */
+	private void compact() {
+		while (true) {
+			List<Segment> chosen = null;
+			synchronized (compaction) {
+				while (!closed && (chosen = pickMerge(segments)) == null) {
+					try {
+						compaction.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (closed) {
+					return;
+				}
+			}
+
+			List<long[]> deleted = new ArrayList<>();
+			for (Segment segment : chosen) {
+				deleted.add(segment.getDeleted());
+			}
+			Segment merged = merge(chosen);
+
+			segmentLock.writeLock().lock();
+			try {
+				List<Segment> next = new ArrayList<>(segments);
+				if (next.containsAll(chosen)) {
+					// carry over documents deleted while the merge was built
+					for (int i = 0; i < chosen.size(); i++) {
+						for (String location : chosen.get(i).deletedSince(deleted.get(i))) {
+							merged.delete(location);
+						}
+					}
+					next.removeAll(chosen);
+					next.add(merged);
+					segments = List.copyOf(next);
+					synchronized (this) {
+						merges++;
+					}
+					log.debug("Merged {} segments into one of {} word positions", chosen.size(), merged.postings);
+				}
+			} finally {
+				segmentLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Picks the segments to merge next: a segment with more than
+	 * {@link #MAX_DELETED} percent of its documents deleted on its own, or else
+	 * the {@link #MERGE_FACTOR} smallest segments of the lowest tier holding at
+	 * least that many.
+	 *
+	 * @param current the live segments
+	 * @return segments to merge, or {@code null} if no tier is full
+	 */
+	private List<Segment> pickMerge(List<Segment> current) {
+		for (Segment segment : current) {
+			if (segment.deletions.get() * 100L > segment.docs.size() * (long) MAX_DELETED) {
+				return List.of(segment);
+			}
+		}
+
+		Map<Integer, List<Segment>> tiers = new LinkedHashMap<>();
+		List<Segment> sorted = new ArrayList<>(current);
+		sorted.sort(Comparator.comparingLong(segment -> segment.postings));
+
+		for (Segment segment : sorted) {
+			List<Segment> tier = tiers.computeIfAbsent(tier(segment), k -> new ArrayList<>());
+			tier.add(segment);
+			if (tier.size() == MERGE_FACTOR) {
+				return tier;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the tier of a segment: 0 up to the buffer size, then one more for
+	 * every {@link #MERGE_FACTOR} times larger.
+	 *
+	 * @param segment the segment
+	 * @return the tier
+	 */
+	private int tier(Segment segment) {
+		int tier = 0;
+		for (long size = bufferSize; segment.postings > size && tier < 62; size *= MERGE_FACTOR) {
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * Copies the live documents of segments into a new one, leaving them
+	 * unchanged.
+	 *
+	 * @param chosen the segments to merge
+	 * @return the merged segment
+	 */
+	private static Segment merge(List<Segment> chosen) {
+		InvertedIndex merged = new InvertedIndex();
+		for (Segment segment : chosen) {
+			List<String> deleted = segment.deletedSince(null);
+			if (deleted.isEmpty()) {
+				merged.copyAll(segment.index);
+			} else {
+				InvertedIndex live = new InvertedIndex();
+				live.copyAll(segment.index);
+				live.removeLocations(deleted);
+				merged.addAll(live);
+			}
+		}
+		return new Segment(merged, postings(merged));
+	}
+
+	/**
+	 * Returns the number of word positions of an index, the sum of the word counts
+	 * of its locations.
+	 *
+	 * @param index an index no other thread changes
+	 * @return number of word positions
+	 */
+	private static long postings(InvertedIndex index) {
+		long positions = 0;
+		for (String location : index.getCountLocations()) {
+			positions += index.getCount(location);
+		}
+		return positions;
+	}
+
+	/**
+	 * An immutable segment, its size and its deleted documents. Only the deleted
+	 * documents change, one bit at a time without locking.
+	 */
+	private static class Segment {
+		/** Postings of the segment, never changed. */
+		private final InvertedIndex index;
+
+		/** Number of word positions in the segment. */
+		private final long postings;
+
+		/** Document number of every location. */
+		private final Map<String, Integer> docs;
+
+		/** Bitset of deleted document numbers, 64 per element. */
+		private final AtomicLongArray deleted;
+
+		/** Number of deleted documents. */
+		private final AtomicInteger deletions;
+
+		/**
+		 * Initializes a segment with no deleted documents.
+		 *
+		 * @param index    postings of the segment
+		 * @param postings number of word positions in the segment
+		 */
+		public Segment(InvertedIndex index, long postings) {
+			this.index = index;
+			this.postings = postings;
+			this.docs = new HashMap<>();
+			for (String location : index.getCountLocations()) {
+				docs.put(location, docs.size());
+			}
+			this.deleted = new AtomicLongArray((docs.size() + 63) / 64);
+			this.deletions = new AtomicInteger();
+		}
+
+		/**
+		 * Marks the document of a location deleted.
+		 *
+		 * @param location the location
+		 * @return {@code true} if the segment held the location and it was live
+		 */
+		public boolean delete(String location) {
+			Integer doc = docs.get(location);
+			if (doc == null) {
+				return false;
+			}
+
+			long bit = 1L << doc;
+			while (true) {
+				long bits = deleted.get(doc >>> 6);
+				if ((bits & bit) != 0) {
+					return false;
+				}
+				if (deleted.compareAndSet(doc >>> 6, bits, bits | bit)) {
+					deletions.incrementAndGet();
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Returns whether the segment holds the location and it is not deleted.
+		 *
+		 * @param location the location
+		 * @return {@code true} if the location is live in this segment
+		 */
+		public boolean isLive(String location) {
+			Integer doc = docs.get(location);
+			return doc != null && (deleted.get(doc >>> 6) & (1L << doc)) == 0;
+		}
+
+		/**
+		 * Returns whether any live document of the segment holds the word.
+		 *
+		 * @param word the word
+		 * @return {@code true} if the word is in a live document
+		 */
+		public boolean containsWord(String word) {
+			if (deletions.get() == 0) {
+				return index.containsWord(word);
+			}
+			for (String location : index.getLocations(word)) {
+				if (isLive(location)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Adds up the matches of the live documents of the segment.
+		 *
+		 * @param wordQuery   set of query words
+		 * @param exactSearch whether words must match exactly instead of by prefix
+		 * @param counts      location to matching positions map to add to
+		 */
+		public void countMatches(Set<String> wordQuery, boolean exactSearch, Map<String, Integer> counts) {
+			if (deletions.get() == 0) {
+				index.countMatches(wordQuery, exactSearch, counts);
+				return;
+			}
+
+			Map<String, Integer> matches = new LinkedHashMap<>();
+			index.countMatches(wordQuery, exactSearch, matches);
+			for (var match : matches.entrySet()) {
+				if (isLive(match.getKey())) {
+					counts.merge(match.getKey(), match.getValue(), Integer::sum);
+				}
+			}
+		}
+
+		/**
+		 * Returns a copy of the deleted documents bitset.
+		 *
+		 * @return the deleted bits
+		 */
+		public long[] getDeleted() {
+			long[] bits = new long[deleted.length()];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = deleted.get(i);
+			}
+			return bits;
+		}
+
+		/**
+		 * Returns the locations deleted since a copy of the bitset was taken.
+		 *
+		 * @param before copy of the bitset, or {@code null} for every deleted
+		 *               location
+		 * @return the locations deleted since
+		 */
+		public List<String> deletedSince(long[] before) {
+			List<String> locations = new ArrayList<>();
+			if (deletions.get() == 0) {
+				return locations;
+			}
+
+			for (var doc : docs.entrySet()) {
+				int number = doc.getValue();
+				long bit = 1L << number;
+				boolean now = (deleted.get(number >>> 6) & bit) != 0;
+				boolean then = before != null && (before[number >>> 6] & bit) != 0;
+				if (now && !then) {
+					locations.add(doc.getKey());
+				}
+			}
+			return locations;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import opennlp.tools.stemmer.Stemmer;
+
+/**
+ * Thread-safe English stemmer that remembers the stem of every word it has
+ * seen. Words in text follow a Zipf distribution, so a few thousand words such
+ * as "the" and "and" make up most occurrences, and stemming each of them once
+ * saves most of the stemming work of an index build.
+ *
+ * <p>
+ * Lookups first check a small direct-mapped cache owned by the calling thread,
+ * then the shared cache. Only words missing from both are stemmed, with the
+ * stemmer the calling thread gets from {@link WordStemmer#getStemmer()}. The
+ * shared cache stops taking new words once it holds its capacity, which keeps
+ * the words seen first, and so the most frequent ones.
+ *
+ * @author dionfeng
+ *
+ */
+public class StemCache implements Stemmer {
+	/** The default number of words kept in the shared cache. */
+	public static final int DEFAULT_CAPACITY = 100_000;
+
+	/** Number of words kept in each thread's cache, a power of two. */
+	public static final int LOCAL_SIZE = 512;
+
+	/** Cache shared by the index builders, crawler and searchers. */
+	private static final StemCache DEFAULT = new StemCache(DEFAULT_CAPACITY);
+
+	/** Stems by word. */
+	private final ConcurrentHashMap<String, String> stems;
+
+	/** Most words kept in {@link #stems}. */
+	private final int capacity;
+
+	/** Cache and stemmer of each thread. */
+	private final ThreadLocal<Local> locals;
+
+	/** Number of words found in a thread's cache. */
+	private final LongAdder localHits;
+
+	/** Number of words found in the shared cache. */
+	private final LongAdder hits;
+
+	/** Number of words that had to be stemmed. */
+	private final LongAdder misses;
+
+	/**
+	 * Initializes an empty cache.
+	 *
+	 * @param capacity most words kept in the shared cache
+	 */
+	public StemCache(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		this.stems = new ConcurrentHashMap<>();
+		this.locals = ThreadLocal.withInitial(Local::new);
+		this.localHits = new LongAdder();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Returns the cache shared by the index builders, crawler and searchers.
+	 *
+	 * @return the default English stem cache
+	 */
+	public static StemCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the stem of the word.
+	 *
+	 * @param word the cleaned word
+	 * @return the stem of the word
+	 */
+	@Override
+	public String stem(CharSequence word) {
+		String key = word.toString();
+		Local local = locals.get();
+		int slot = key.hashCode() & (LOCAL_SIZE - 1);
+
+		if (key.equals(local.words[slot])) {
+			localHits.increment();
+			return local.stems[slot];
+		}
+
+		String stem = stems.get(key);
+		if (stem != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			stem = local.stemmer.stem(key).toString();
+			if (stems.size() < capacity) {
+				stems.putIfAbsent(key, stem);
+			}
+		}
+
+		local.words[slot] = key;
+		local.stems[slot] = stem;
+		return stem;
+	}
+
+	/**
+	 * Returns the number of words found in a thread's cache.
+	 *
+	 * @return number of thread cache hits
+	 */
+	public long getLocalHits() {
+		return localHits.sum();
+	}
+
+	/**
+	 * Returns the number of words found in the shared cache, not counting those
+	 * found in a thread's cache.
+	 *
+	 * @return number of shared cache hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of words that had to be stemmed.
+	 *
+	 * @return number of cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of words found in either cache.
+	 *
+	 * @return the hit rate, or 0 if nothing was stemmed
+	 */
+	public double getHitRate() {
+		long found = getLocalHits() + getHits();
+		long total = found + getMisses();
+		return total == 0 ? 0 : (double) found / total;
+	}
+
+	/**
+	 * Returns the number of words in the shared cache.
+	 *
+	 * @return number of cached words
+	 */
+	public int size() {
+		return stems.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d words, %d thread hits, %d shared hits, %d misses, hit rate: %.2f", size(),
+				getLocalHits(), getHits(), getMisses(), getHitRate());
+	}
+
+	/**
+	 * Direct-mapped cache and stemmer owned by one thread.
+	 */
+	private static class Local {
+		/** Cached words by slot. */
+		private final String[] words;
+
+		/** Stems of the cached words by slot. */
+		private final String[] stems;
+
+		/** Stemmer for words missing from every cache. */
+		private final Stemmer stemmer;
+
+		/**
+		 * Initializes an empty cache.
+		 */
+		public Local() {
+			this.words = new String[LOCAL_SIZE];
+			this.stems = new String[LOCAL_SIZE];
+			this.stemmer = WordStemmer.getStemmer();
+		}
+	}
+}
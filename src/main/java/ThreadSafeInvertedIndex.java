@@ -2,6 +2,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -70,6 +71,113 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * add all the data from other Inverted Index to the @this index, moving every
+	 * position of the other index forward by the offset
+	 *
+	 * @param other  other Inverted Index
+	 * @param offset number of words before the positions of the other index
+	 */
+	@Override
+	public void addAll(InvertedIndex other, int offset) {
+		lock.writeLock().lock();
+		try {
+			super.addAll(other, offset);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove every word position of the given locations from the index
+	 *
+	 * @param locations locations to remove
+	 */
+	@Override
+	public void removeLocations(Collection<String> locations) {
+		lock.writeLock().lock();
+		try {
+			super.removeLocations(locations);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove every word and location from the index
+	 */
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			super.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy all the words, file locations, and occurences at once
+	 *
+	 * @param other other Inverted index, left unchanged
+	 */
+	@Override
+	public void copyAll(InvertedIndex other) {
+		lock.writeLock().lock();
+		try {
+			super.copyAll(other);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove every location inside the directory
+	 *
+	 * @param directory the directory
+	 */
+	@Override
+	public void removeDirectory(Path directory) {
+		lock.writeLock().lock();
+		try {
+			super.removeDirectory(directory);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace everything indexed at the location in a single update, so searches
+	 * never see the location half removed
+	 *
+	 * @param location location to replace
+	 * @param other    locally built index of the new contents of the location
+	 */
+	@Override
+	public void replaceLocation(String location, InvertedIndex other) {
+		lock.writeLock().lock();
+		try {
+			super.replaceLocation(location, other);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Function that get every location with words in the index
+	 *
+	 * @return an unmodified view of the locations in the index
+	 */
+	@Override
+	public Collection<String> getCountLocations() {
+		lock.readLock().lock();
+		try {
+			return super.getCountLocations();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Function that get all the words in the map
 	 *
@@ -233,6 +341,55 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Write a binary snapshot of the Inverted Index to the given path
+	 *
+	 * @param path location of the snapshot to store
+	 * @throws IOException if an IO error occurs
+	 */
+	@Override
+	public void writeSnapshot(Path path) throws IOException {
+		lock.readLock().lock();
+		try {
+			super.writeSnapshot(path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write a binary snapshot of the Inverted Index to the given path and empty
+	 * the index, without letting other threads change it in between
+	 *
+	 * @param path location of the snapshot to store
+	 * @throws IOException if an IO error occurs
+	 */
+	@Override
+	public void spill(Path path) throws IOException {
+		lock.writeLock().lock();
+		try {
+			super.spill(path);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add all the words, locations, and positions of a snapshot to this index
+	 *
+	 * @param path location of the snapshot to read
+	 * @throws IOException if an IO error occurs
+	 */
+	@Override
+	public void readSnapshot(Path path) throws IOException {
+		lock.writeLock().lock();
+		try {
+			super.readSnapshot(path);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public String toString() {
 		lock.readLock().lock();
@@ -307,6 +464,24 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Add up the number of word positions of each location that match the query
+	 * words
+	 *
+	 * @param wordQuery   set of query words
+	 * @param exactSearch whether words must match exactly instead of by prefix
+	 * @param counts      location to matching positions map to add to
+	 */
+	@Override
+	public void countMatches(Set<String> wordQuery, boolean exactSearch, Map<String, Integer> counts) {
+		lock.readLock().lock();
+		try {
+			super.countMatches(wordQuery, exactSearch, counts);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * wordCount toString method
 	 *
@@ -0,0 +1,280 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe set of crawled urls that stores a 64-bit fingerprint of each
+ * normalized url string instead of the url itself. Unlike a set of
+ * {@link java.net.URL} objects, checking a url never resolves its host and costs
+ * 8 bytes (or a few bits with the Bloom filter) per url instead of a full object
+ * graph. The fingerprints are spread over independently locked stripes so
+ * threads checking different urls rarely wait on each other.
+ *
+ * <p>
+ * By default fingerprints are kept exactly, so two urls are only confused if
+ * their 64-bit fingerprints collide. For very large crawls the set can instead
+ * be backed by a Bloom filter of fixed size, which may occasionally report an
+ * unseen url as already crawled.
+ *
+ * @author dionfeng
+ *
+ */
+public class UrlFingerprintSet {
+	/** Number of independently locked stripes, must be a power of two. */
+	private static final int STRIPES = 64;
+
+	/** Initial capacity of each stripe's table, must be a power of two. */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Exact fingerprint tables, also used as the locks of the Bloom filter. */
+	private final Stripe[] stripes;
+
+	/** Bloom filter bits, or {@code null} when storing exact fingerprints. */
+	private final AtomicLongArray bloom;
+
+	/** Number of bits in the Bloom filter. */
+	private final long bloomBits;
+
+	/** Number of bits set per url in the Bloom filter. */
+	private final int bloomHashes;
+
+	/** Number of urls added. */
+	private final LongAdder size;
+
+	/**
+	 * Initializes a set that stores exact fingerprints.
+	 */
+	public UrlFingerprintSet() {
+		this.stripes = createStripes();
+		this.bloom = null;
+		this.bloomBits = 0;
+		this.bloomHashes = 0;
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * Initializes a set backed by a Bloom filter sized for the expected number of
+	 * urls and false positive rate.
+	 *
+	 * @param expected          expected number of urls
+	 * @param falsePositiveRate acceptable chance of reporting an unseen url as seen
+	 */
+	public UrlFingerprintSet(long expected, double falsePositiveRate) {
+		expected = Math.max(expected, 1);
+		double bits = -expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+
+		this.stripes = createStripes();
+		this.bloom = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, ((long) bits >>> 6) + 1));
+		this.bloomBits = (long) bloom.length() << 6;
+		this.bloomHashes = Math.max(1, (int) Math.round(bits / expected * Math.log(2)));
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * Adds the url to the set.
+	 *
+	 * @param url the normalized url
+	 * @return {@code true} if the url was not already in the set
+	 */
+	public boolean add(CharSequence url) {
+		long fingerprint = fingerprint(url);
+		Stripe stripe = stripes[(int) (fingerprint >>> 32) & (STRIPES - 1)];
+		boolean added;
+
+		// same url, same stripe, so two threads never both claim the same url
+		synchronized (stripe) {
+			added = bloom == null ? stripe.add(fingerprint) : setBloomBits(fingerprint);
+		}
+
+		if (added) {
+			size.increment();
+		}
+		return added;
+	}
+
+	/**
+	 * Checks whether the url is in the set.
+	 *
+	 * @param url the normalized url
+	 * @return {@code true} if the url was added before
+	 */
+	public boolean contains(CharSequence url) {
+		long fingerprint = fingerprint(url);
+
+		if (bloom == null) {
+			Stripe stripe = stripes[(int) (fingerprint >>> 32) & (STRIPES - 1)];
+			synchronized (stripe) {
+				return stripe.contains(fingerprint);
+			}
+		}
+
+		long h1 = fingerprint;
+		long h2 = Long.rotateLeft(fingerprint, 32) | 1;
+		for (int i = 0; i < bloomHashes; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bloomBits);
+			if ((bloom.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of urls added.
+	 *
+	 * @return number of urls in the set
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	/**
+	 * Returns whether this set is backed by a Bloom filter.
+	 *
+	 * @return {@code true} if membership is approximate
+	 */
+	public boolean isApproximate() {
+		return bloom != null;
+	}
+
+	/**
+	 * Creates the locked stripes. The stripe tables stay empty when the set is
+	 * backed by a Bloom filter.
+	 *
+	 * @return the stripes
+	 */
+	private static Stripe[] createStripes() {
+		Stripe[] stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+		return stripes;
+	}
+
+	/**
+	 * Computes the 64-bit fingerprint of a url string without allocating.
+	 *
+	 * @param url the normalized url
+	 * @return the fingerprint, never 0
+	 */
+	public static long fingerprint(CharSequence url) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++) {
+			hash ^= url.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		// finalize so every input bit affects the stripe and table bits
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Sets the Bloom filter bits of a fingerprint.
+	 *
+	 * @param fingerprint the url fingerprint
+	 * @return {@code true} if any bit was not already set
+	 */
+	private boolean setBloomBits(long fingerprint) {
+		boolean added = false;
+		long h1 = fingerprint;
+		long h2 = Long.rotateLeft(fingerprint, 32) | 1;
+
+		for (int i = 0; i < bloomHashes; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bloomBits);
+			long mask = 1L << bit;
+			long previous = bloom.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b);
+			added |= (previous & mask) == 0;
+		}
+		return added;
+	}
+
+	@Override
+	public String toString() {
+		return bloom == null ? String.format("%d urls", size())
+				: String.format("%d urls (bloom filter: %d bits, %d hashes)", size(), bloomBits, bloomHashes);
+	}
+
+	/**
+	 * Open addressing hash set of fingerprints. Not thread-safe; callers lock the
+	 * stripe.
+	 */
+	private static class Stripe {
+		/** Table of fingerprints, 0 marks an empty slot. */
+		private long[] table;
+
+		/** Number of fingerprints in the table. */
+		private int count;
+
+		/**
+		 * Initializes an empty table.
+		 */
+		public Stripe() {
+			this.table = new long[INITIAL_CAPACITY];
+			this.count = 0;
+		}
+
+		/**
+		 * Adds the fingerprint, growing the table when half full.
+		 *
+		 * @param fingerprint the url fingerprint
+		 * @return {@code true} if the fingerprint was not already present
+		 */
+		public boolean add(long fingerprint) {
+			if (!insert(table, fingerprint)) {
+				return false;
+			}
+
+			if (++count > table.length >>> 1) {
+				long[] larger = new long[table.length << 1];
+				for (long existing : table) {
+					if (existing != 0) {
+						insert(larger, existing);
+					}
+				}
+				table = larger;
+			}
+			return true;
+		}
+
+		/**
+		 * Checks whether the fingerprint is present.
+		 *
+		 * @param fingerprint the url fingerprint
+		 * @return {@code true} if the fingerprint was added before
+		 */
+		public boolean contains(long fingerprint) {
+			int mask = table.length - 1;
+			for (int i = (int) fingerprint & mask; table[i] != 0; i = (i + 1) & mask) {
+				if (table[i] == fingerprint) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Inserts the fingerprint into the table with linear probing.
+		 *
+		 * @param table       the table to insert into
+		 * @param fingerprint the url fingerprint
+		 * @return {@code true} if the fingerprint was not already present
+		 */
+		private static boolean insert(long[] table, long fingerprint) {
+			int mask = table.length - 1;
+			int i = (int) fingerprint & mask;
+			while (table[i] != 0) {
+				if (table[i] == fingerprint) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = fingerprint;
+			return true;
+		}
+	}
+}
@@ -33,6 +33,21 @@ public class WordStemmer {
 	/** Regular expression that matches non-alphabetic characters. **/
 	public static final Pattern CLEAN_REGEX = Pattern.compile("(?U)[^\\p{Alpha}\\p{Space}]+");
 
+	/** Stemmer of each thread, reused by every stem the thread needs. */
+	private static final ThreadLocal<SnowballStemmer> STEMMERS = ThreadLocal
+			.withInitial(() -> new SnowballStemmer(ENGLISH));
+
+	/**
+	 * Returns the English stemmer of the calling thread. Stemmers are not
+	 * thread-safe but are expensive to create, so each thread keeps one for every
+	 * page, file, query and request it handles.
+	 *
+	 * @return the stemmer owned by the calling thread
+	 */
+	public static SnowballStemmer getStemmer() {
+		return STEMMERS.get();
+	}
+
 	/**
 	 * Cleans the text by removing any non-alphabetic characters (e.g. non-letters
 	 * like digits, punctuation, symbols, and diacritical marks like the umlaut) and
@@ -67,17 +82,17 @@ public class WordStemmer {
 	 * @see #parse(String)
 	 */
 	public static String[] parse(String text) {
-		return split(clean(text));
+		return ParseUtils.parse(text);
 	}
 
 	/**
-	 * stem a single word
+	 * stem a single word with the shared stem cache
 	 * 
 	 * @param word world to stem
 	 * @return stemmed word
 	 */
 	public static String wordStem(String word) {
-		return wordStem(word, new SnowballStemmer(ENGLISH));
+		return StemCache.getDefault().stem(word);
 	}
 
 	/**
@@ -99,9 +114,7 @@ public class WordStemmer {
 	 * @param stems   collection of stemmed words
 	 */
 	public static void stemLine(String line, Stemmer stemmer, Collection<String> stems) {
-		for (String word : parse(line)) {
-			stems.add(stemmer.stem(word).toString());
-		}
+		ParseUtils.parse(line, word -> stems.add(stemmer.stem(word).toString()));
 	}
 
 	/**
@@ -110,12 +123,12 @@ public class WordStemmer {
 	 * @param line the line of words to parse and stem
 	 * @return a list of cleaned and stemmed words in parsed order
 	 *
-	 * @see SnowballStemmer
+	 * @see StemCache
 	 * @see #ENGLISH
 	 * @see #listStems(String, Stemmer)
 	 */
 	public static List<String> listStems(String line) {
-		return listStems(line, new SnowballStemmer(ENGLISH));
+		return listStems(line, StemCache.getDefault());
 	}
 
 	/**
@@ -134,7 +147,7 @@ public class WordStemmer {
 		List<String> wordList = new ArrayList<>();
 		try (BufferedReader reader = Files.newBufferedReader(input, UTF8)) {
 			String line;
-			Stemmer stemmer = new SnowballStemmer(ENGLISH);
+			Stemmer stemmer = StemCache.getDefault();
 			while ((line = reader.readLine()) != null) {
 				stemLine(line, stemmer, wordList);
 			}
@@ -165,12 +178,12 @@ public class WordStemmer {
 	 * @param line the line of words to parse and stem
 	 * @return a sorted set of unique cleaned and stemmed words
 	 *
-	 * @see SnowballStemmer
+	 * @see StemCache
 	 * @see #ENGLISH
 	 * @see #uniqueStems(String, Stemmer)
 	 */
 	public static Set<String> uniqueStems(String line) {
-		return uniqueStems(line, new SnowballStemmer(ENGLISH));
+		return uniqueStems(line, StemCache.getDefault());
 	}
 
 	/**
@@ -189,7 +202,7 @@ public class WordStemmer {
 		Set<String> wordSet = new TreeSet<>();
 		try (BufferedReader reader = Files.newBufferedReader(input, UTF8)) {
 			String line;
-			Stemmer stemmer = new SnowballStemmer(ENGLISH);
+			Stemmer stemmer = StemCache.getDefault();
 			while ((line = reader.readLine()) != null) {
 				stemLine(line, stemmer, wordSet);
 			}
@@ -231,7 +244,7 @@ public class WordStemmer {
 		List<Set<String>> result = new ArrayList<>();
 		try (BufferedReader reader = Files.newBufferedReader(input, UTF8)) {
 			String line;
-			Stemmer stemmer = new SnowballStemmer(ENGLISH);
+			Stemmer stemmer = StemCache.getDefault();
 			while ((line = reader.readLine()) != null) {
 				result.add(uniqueStems(line, stemmer));
 			}